@@ -10,6 +10,9 @@
 
 package com.sun.jamazon;
 
+import java.io.File;
+import java.io.IOException;
+
 import java.net.URL;
 import java.net.MalformedURLException; 
 
@@ -26,6 +29,7 @@ import myamazonclient.AmazonClientGenClient.AmazonSearchService;
 import myamazonclient.AmazonClientGenClient.AmazonSearchService_Impl;
 import myamazonclient.AmazonClientGenClient.AmazonSearchPort;
 import myamazonclient.AmazonClientGenClient.AmazonSearchService;
+import myamazonclient.AmazonClientGenClient.AsinRequest;
 import myamazonclient.AmazonClientGenClient.KeywordRequest;
 
 // Results classes
@@ -44,6 +48,8 @@ public class AmazonProxy {
     private Object results; // The results object. May be a ProductInfo 
 
     private static AmazonSearchPort port = null;
+    private static boolean portReady;
+    private static Thread portThread;
 
     // The mode keys that are used for the request
     public  static String[] MODE_KEYS = {
@@ -113,15 +119,96 @@ public class AmazonProxy {
 	    System.setProperty("http.proxyPort", p);
 	}
 
-	if (port == null) {
-	    try {
-		AmazonSearchService service = new AmazonSearchService_Impl();
-		port = service.getAmazonSearchPort();
-	    } catch (Exception ex) {
-		ex.printStackTrace();
-	    }
+	startInit();
+    }
+
+    /**
+     * Starts creating the port on a background thread. Creating the stub
+     * and its serializers takes a few seconds so this should be called as
+     * early as possible. The first request waits for it to finish.
+     */
+    public static synchronized void startInit() {
+	if (portThread != null) {
+	    return;
 	}
-	
+	portThread = new Thread(new Runnable() {
+		public void run() {
+		    long start = System.currentTimeMillis();
+		    AmazonSearchPort newPort = null;
+		    try {
+			String gateway = System.getProperty("jamazon.gateway");
+			if (gateway != null) {
+			    newPort = SearchGateway.createClientPort(gateway);
+			} else {
+			    newPort = createServicePort();
+			}
+		    } catch (Exception ex) {
+			ex.printStackTrace();
+		    }
+		    Metrics.set("startup.port", System.currentTimeMillis() - start);
+		    setPort(newPort);
+		}
+	    }, "JAmazon port");
+	portThread.setDaemon(true);
+	portThread.start();
+    }
+
+    /**
+     * Creates the port to the Amazon web service. If the requests are
+     * being recorded or replayed the port is wrapped by SoapArchive. If
+     * <code>jamazon.catalog</code> is set the searches are answered from
+     * that CatalogIndex file instead.
+     */
+    static AmazonSearchPort createServicePort() throws ServiceException, IOException {
+	String catalog = System.getProperty("jamazon.catalog");
+	if (catalog != null) {
+	    return CatalogIndex.createPort(new File(catalog));
+	}
+
+	AmazonSearchPort newPort = null;
+	if (!SoapArchive.isReplaying()) {
+	    // Replaying doesn't need the service
+	    AmazonSearchService service = new AmazonSearchService_Impl();
+	    newPort = service.getAmazonSearchPort();
+	}
+	return SoapArchive.createPort(newPort);
+    }
+
+    /**
+     * Returns true if the searches are answered in this process, from a
+     * CatalogIndex or from a SoapArchive without the recorded delays, so
+     * they don't count against the Amazon quota.
+     */
+    static boolean isLocal() {
+	if (System.getProperty("jamazon.gateway") != null) {
+	    return false;
+	}
+	return System.getProperty("jamazon.catalog") != null ||
+	    (SoapArchive.isReplaying() && !Boolean.getBoolean("jamazon.soap.replay.timing"));
+    }
+
+    private static synchronized void setPort(AmazonSearchPort newPort) {
+	port = newPort;
+	portReady = true;
+	AmazonProxy.class.notifyAll();
+    }
+
+    /**
+     * Returns the port, waiting for it to be created if necessary. If it
+     * couldn't be created the last time it is tried again.
+     *
+     * @return the port or null if it couldn't be created
+     */
+    private static synchronized AmazonSearchPort getPort() throws InterruptedException {
+	if (portReady && port == null) {
+	    portReady = false;
+	    portThread = null;
+	}
+	startInit();
+	while (!portReady) {
+	    AmazonProxy.class.wait();
+	}
+	return port;
     }
 
     /**
@@ -131,6 +218,14 @@ public class AmazonProxy {
 	setParam("Keyword", keyword);
     }
 
+    /**
+     * Set the order of the results such as "+pricerank". Null returns the
+     * results in the order chosen by Amazon.
+     */
+    public void setSort(String sort) {
+	setParam("Sort", sort);
+    }
+
     /**
      * @param type "heavy" or "lite"
      */
@@ -190,9 +285,14 @@ public class AmazonProxy {
 	request.setTag((String)params.get("Tag"));
 	request.setType((String)params.get("Type"));
 	request.setDevtag((String)params.get("Dev-Tag"));
+	request.setSort((String)params.get("Sort"));
 
 	results = null;
 	try {
+	    AmazonSearchPort port = getPort();
+	    if (port == null) {
+		return false;
+	    }
 	    results = port.keywordSearchRequest(request);
 	} catch (RemoteException ex) {
 	    ex.printStackTrace();
@@ -201,6 +301,49 @@ public class AmazonProxy {
 		ex.getCause().printStackTrace();
 	    }
 	    return false;
+	} catch (InterruptedException ex) {
+	    // The search has been cancelled
+	    Thread.currentThread().interrupt();
+	    return false;
+	} catch (Exception ex2) {
+	    ex2.printStackTrace();
+	    return false;
+	}
+	return true;
+    }
+
+    /**
+     * Executes a request for a single product. If this returns true then
+     * getResults() will contain the ProductInfo data structure.
+     * 
+     * @return true if successful; false otherwise
+     */
+    public boolean executeAsinRequest(String asin) {
+	AsinRequest request = new AsinRequest();
+
+	request.setAsin(asin);
+	request.setTag((String)params.get("Tag"));
+	request.setType((String)params.get("Type"));
+	request.setDevtag((String)params.get("Dev-Tag"));
+
+	results = null;
+	try {
+	    AmazonSearchPort port = getPort();
+	    if (port == null) {
+		return false;
+	    }
+	    results = port.asinSearchRequest(request);
+	} catch (RemoteException ex) {
+	    ex.printStackTrace();
+	    if (ex.getCause() != null) {
+		System.err.println("Caused by: ");
+		ex.getCause().printStackTrace();
+	    }
+	    return false;
+	} catch (InterruptedException ex) {
+	    // The search has been cancelled
+	    Thread.currentThread().interrupt();
+	    return false;
 	} catch (Exception ex2) {
 	    ex2.printStackTrace();
 	    return false;
@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2018 Oracle and/or its affiliates. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Distribution License v. 1.0, which is available at
+ * http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+
+package com.sun.jamazon;
+
+/**
+ * A hash table from ASINs to row ids which uses open addressing with
+ * linear probing. The keys and the ids are held in parallel arrays so
+ * no objects are created for each entry and a lookup doesn't
+ * allocate.
+ */
+public class AsinIndex {
+
+    private static final int NOT_FOUND = -1;
+
+    private String[] keys;
+    private int[] ids;
+    private int size;
+
+    // The table is resized when it's more than half full
+    private int threshold;
+
+    public AsinIndex() {
+	init(64);
+    }
+
+    private void init(int capacity) {
+	keys = new String[capacity];
+	ids = new int[capacity];
+	threshold = capacity / 2;
+	size = 0;
+    }
+
+    public void clear() {
+	init(64);
+    }
+
+    public int size() {
+	return size;
+    }
+
+    /**
+     * Returns the id of the ASIN or -1 if it isn't in the index.
+     */
+    public int get(String asin) {
+	if (asin == null) {
+	    return NOT_FOUND;
+	}
+	int mask = keys.length - 1;
+	for (int i = hash(asin) & mask; keys[i] != null; i = (i + 1) & mask) {
+	    if (keys[i].equals(asin)) {
+		return ids[i];
+	    }
+	}
+	return NOT_FOUND;
+    }
+
+    /**
+     * Adds the ASIN to the index unless it's already there.
+     *
+     * @return the id which was already in the index for the ASIN or -1 if
+     *         it has been added
+     */
+    public int putIfAbsent(String asin, int id) {
+	if (asin == null) {
+	    return NOT_FOUND;
+	}
+	int mask = keys.length - 1;
+	int i = hash(asin) & mask;
+	for (; keys[i] != null; i = (i + 1) & mask) {
+	    if (keys[i].equals(asin)) {
+		return ids[i];
+	    }
+	}
+	keys[i] = asin;
+	ids[i] = id;
+	if (++size > threshold) {
+	    rehash();
+	}
+	return NOT_FOUND;
+    }
+
+    private void rehash() {
+	String[] oldKeys = keys;
+	int[] oldIds = ids;
+
+	init(oldKeys.length * 2);
+	int mask = keys.length - 1;
+	for (int j = 0; j < oldKeys.length; j++) {
+	    if (oldKeys[j] != null) {
+		int i = hash(oldKeys[j]) & mask;
+		while (keys[i] != null) {
+		    i = (i + 1) & mask;
+		}
+		keys[i] = oldKeys[j];
+		ids[i] = oldIds[j];
+		size++;
+	    }
+	}
+    }
+
+    // Spreads the bits of the String hash code since ASINs share prefixes
+    private static int hash(String asin) {
+	int h = asin.hashCode();
+	h ^= (h >>> 20) ^ (h >>> 12);
+	return h ^ (h >>> 7) ^ (h >>> 4);
+    }
+}
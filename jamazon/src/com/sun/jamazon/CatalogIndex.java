@@ -0,0 +1,695 @@
+/*
+ * Copyright (c) 2018 Oracle and/or its affiliates. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Distribution License v. 1.0, which is available at
+ * http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+
+package com.sun.jamazon;
+
+import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import java.rmi.RemoteException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import myamazonclient.AmazonClientGenClient.AmazonSearchPort;
+import myamazonclient.AmazonClientGenClient.AsinRequest;
+import myamazonclient.AmazonClientGenClient.KeywordRequest;
+import myamazonclient.AmazonClientGenClient.ProductInfo;
+import myamazonclient.AmazonClientGenClient.Details;
+import myamazonclient.AmazonClientGenClient.Reviews;
+
+/**
+ * Searches a catalog which has been dumped by <code>Suck</code> without
+ * going to Amazon. The catalog is built into an inverted index file which
+ * is mapped into memory, so opening even a large catalog is immediate and
+ * only the parts which are searched are read.
+ * <p>
+ * The products are numbered in order of sales rank, so the ids of the
+ * products containing a word are in the order in which they are returned.
+ * The ids are stored as variable length gaps, which takes a byte for most
+ * ids. A query returns the products which contain all of its words. They
+ * are ordered by sales rank unless the request is sorted by
+ * <code>+reviewrank</code>, when they are ordered by average rating.
+ * <p>
+ * The index file is
+ * <pre>
+ *   header   MAGIC, products, terms, and the position of each section
+ *   ids      the position of the record of each product
+ *   ratings  the average rating of each product in tenths of a star
+ *   asins    the product ids in order of ASIN
+ *   terms    the position of the word, of the postings and of the skips
+ *            of each term in order of word, and the number of products
+ *   records  the fields of each product
+ *   words    the words
+ *   postings the product ids of each term as gaps
+ *   skips    the id before every 64th posting of the long postings and
+ *            the offset of that posting, so that a short list of ids can
+ *            be intersected without decoding all of a long one
+ * </pre>
+ * Every position is an int so the file is limited to 2GB.
+ *
+ * @see Suck
+ */
+public class CatalogIndex {
+
+    private static final int MAGIC = 0x4a414d49;   // "JAMI"
+
+    // The results in a page of the Amazon service
+    private static final int PAGE_SIZE = 10;
+
+    private static final String SORT_RATING = "+reviewrank";
+
+    // The bytes of an entry in the terms
+    private static final int TERM_SIZE = 16;
+
+    // The postings which are skipped by each entry in the skips
+    private static final int SKIP = 64;
+
+    // The fields of a line of the catalog
+    private static final int ASIN = 0;
+    private static final int NAME = 1;
+    private static final int AUTHOR = 2;
+    private static final int RELEASE_DATE = 3;
+    private static final int LIST_PRICE = 4;
+    private static final int OUR_PRICE = 5;
+    private static final int SALES_RANK = 6;
+    private static final int RATING = 7;
+    private static final int FIELDS = 8;
+
+    private ByteBuffer buffer;
+    private int count;
+    private int termCount;
+    private int idsPosition;
+    private int ratingsPosition;
+    private int asinsPosition;
+    private int termsPosition;
+
+    /**
+     * Maps an index file which has been written by <code>build</code>.
+     */
+    public CatalogIndex(File file) throws IOException {
+	RandomAccessFile raf = new RandomAccessFile(file, "r");
+	try {
+	    FileChannel channel = raf.getChannel();
+	    // The mapping stays valid after the file is closed
+	    buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0L, channel.size());
+	} finally {
+	    raf.close();
+	}
+	if (buffer.capacity() < 28 || buffer.getInt(0) != MAGIC) {
+	    throw new IOException("Not a catalog index: " + file);
+	}
+	count = buffer.getInt(4);
+	termCount = buffer.getInt(8);
+	idsPosition = buffer.getInt(12);
+	ratingsPosition = buffer.getInt(16);
+	asinsPosition = buffer.getInt(20);
+	termsPosition = buffer.getInt(24);
+    }
+
+    /**
+     * Creates a port which answers the keyword and ASIN searches from the
+     * index.
+     */
+    public static AmazonSearchPort createPort(File file) throws IOException {
+	final CatalogIndex index = new CatalogIndex(file);
+	return SoapArchive.createProxy(new InvocationHandler() {
+		public Object invoke(Object proxy, Method method, Object[] args)
+		    throws Throwable {
+
+		    if (SoapArchive.isKeywordSearch(method)) {
+			KeywordRequest request = (KeywordRequest)args[0];
+			int page = 1;
+			try {
+			    page = Integer.parseInt(request.getPage());
+			} catch (NumberFormatException ex) {
+			    // drop through, first page
+			}
+			return index.search(request.getKeyword(), request.getSort(), page);
+		    }
+		    if (method.getName().equals("asinSearchRequest")) {
+			String asin = ((AsinRequest)args[0]).getAsin();
+			Details details = index.get(asin);
+			if (details == null) {
+			    throw new RemoteException("Not in the catalog: " + asin);
+			}
+			return createInfo(new Details[] { details }, 1);
+		    }
+		    throw new RemoteException(method.getName() +
+					      " can't be answered from the catalog");
+		}
+	    });
+    }
+
+    /**
+     * Returns the number of products in the catalog.
+     */
+    public int size() {
+	return count;
+    }
+
+    /**
+     * Finds the products which contain all the words of the keywords.
+     *
+     * @param sort "+reviewrank" to order by rating, otherwise the results
+     *        are ordered by sales rank
+     * @param page the page of results starting at 1
+     */
+    public ProductInfo search(String keywords, String sort, int page) {
+	Metrics.increment("catalog.searches");
+	int[] ids = find(DetailsIndex.tokenize(keywords));
+	if (SORT_RATING.equals(sort)) {
+	    ids = sortByRating(ids);
+	}
+
+	int start = Math.max(0, (page - 1) * PAGE_SIZE);
+	int end = Math.min(ids.length, start + PAGE_SIZE);
+	Details[] details = new Details[Math.max(0, end - start)];
+	for (int i = 0; i < details.length; i++) {
+	    details[i] = getRecord(ids[start + i]);
+	}
+	return createInfo(details, ids.length);
+    }
+
+    /**
+     * Returns the product with the ASIN or null if it isn't in the
+     * catalog.
+     */
+    public Details get(String asin) {
+	int low = 0;
+	int high = count - 1;
+	while (low <= high) {
+	    int mid = (low + high) >>> 1;
+	    int id = buffer.getInt(asinsPosition + mid * 4);
+	    int cmp = readString(buffer.getInt(idsPosition + id * 4)).compareTo(asin);
+	    if (cmp < 0) {
+		low = mid + 1;
+	    } else if (cmp > 0) {
+		high = mid - 1;
+	    } else {
+		return getRecord(id);
+	    }
+	}
+	return null;
+    }
+
+    private static ProductInfo createInfo(Details[] details, int total) {
+	ProductInfo info = new ProductInfo();
+	info.setDetails(details);
+	info.setTotalResults(Integer.toString(total));
+	info.setTotalPages(Integer.toString((total + PAGE_SIZE - 1) / PAGE_SIZE));
+	return info;
+    }
+
+    /**
+     * Returns the ids of the products which contain all the words in
+     * order of sales rank.
+     */
+    private int[] find(String[] words) {
+	if (words.length == 0) {
+	    return new int[0];
+	}
+	int[] terms = new int[words.length];
+	for (int i = 0; i < words.length; i++) {
+	    terms[i] = findTerm(words[i]);
+	    if (terms[i] < 0) {
+		return new int[0];
+	    }
+	}
+
+	// Start with the rarest word so the candidates are fewest
+	int rarest = 0;
+	for (int i = 1; i < terms.length; i++) {
+	    if (getDocCount(terms[i]) < getDocCount(terms[rarest])) {
+		rarest = i;
+	    }
+	}
+	int[] ids = readPostings(terms[rarest]);
+	int size = ids.length;
+	for (int i = 0; i < terms.length && size > 0; i++) {
+	    if (i != rarest) {
+		size = intersect(ids, size, terms[i]);
+	    }
+	}
+	if (size < ids.length) {
+	    int[] result = new int[size];
+	    System.arraycopy(ids, 0, result, 0, size);
+	    ids = result;
+	}
+	return ids;
+    }
+
+    /**
+     * Keeps the ids which are also in the postings of the term.
+     *
+     * @return the number of ids kept at the start of the array
+     */
+    private int intersect(int[] ids, int size, int term) {
+	int start = buffer.getInt(termsPosition + term * TERM_SIZE + 4);
+	int skips = buffer.getInt(termsPosition + term * TERM_SIZE + 12);
+	int docCount = getDocCount(term);
+	int skipCount = (skips < 0 ? 0 : (docCount - 1) / SKIP);
+	int skip = 0;
+
+	int position = start;
+	int remaining = docCount;
+	int id = -1;
+	int kept = 0;
+	for (int i = 0; i < size; i++) {
+	    // Jump to the last block which starts before the id
+	    while (skip < skipCount && buffer.getInt(skips + skip * 8) < ids[i]) {
+		int block = (skip + 1) * SKIP;
+		if (block > docCount - remaining) {
+		    id = buffer.getInt(skips + skip * 8);
+		    position = start + buffer.getInt(skips + skip * 8 + 4);
+		    remaining = docCount - block;
+		}
+		skip++;
+	    }
+	    while (id < ids[i] && remaining > 0) {
+		// Decode the next gap
+		int gap = 0;
+		int shift = 0;
+		byte b;
+		do {
+		    b = buffer.get(position++);
+		    gap |= (b & 0x7f) << shift;
+		    shift += 7;
+		} while (b < 0);
+		id += gap;
+		remaining--;
+	    }
+	    if (id == ids[i]) {
+		ids[kept++] = id;
+	    } else if (id < ids[i]) {
+		// The postings have run out
+		break;
+	    }
+	}
+	return kept;
+    }
+
+    private int[] readPostings(int term) {
+	int position = buffer.getInt(termsPosition + term * TERM_SIZE + 4);
+	int[] ids = new int[getDocCount(term)];
+	int id = -1;
+	for (int i = 0; i < ids.length; i++) {
+	    int gap = 0;
+	    int shift = 0;
+	    byte b;
+	    do {
+		b = buffer.get(position++);
+		gap |= (b & 0x7f) << shift;
+		shift += 7;
+	    } while (b < 0);
+	    id += gap;
+	    ids[i] = id;
+	}
+	return ids;
+    }
+
+    private int getDocCount(int term) {
+	return buffer.getInt(termsPosition + term * TERM_SIZE + 8);
+    }
+
+    /**
+     * Returns the number of the term or -1 if the word isn't in the index.
+     */
+    private int findTerm(String word) {
+	int low = 0;
+	int high = termCount - 1;
+	while (low <= high) {
+	    int mid = (low + high) >>> 1;
+	    int cmp = readString(buffer.getInt(termsPosition + mid * TERM_SIZE)).compareTo(word);
+	    if (cmp < 0) {
+		low = mid + 1;
+	    } else if (cmp > 0) {
+		high = mid - 1;
+	    } else {
+		return mid;
+	    }
+	}
+	return -1;
+    }
+
+    private int[] sortByRating(int[] ids) {
+	// Bucket by rating so that products with the same rating stay in
+	// order of sales rank
+	int[] counts = new int[53];
+	for (int i = 0; i < ids.length; i++) {
+	    counts[50 - getRating(ids[i]) + 1]++;
+	}
+	for (int i = 1; i < counts.length; i++) {
+	    counts[i] += counts[i - 1];
+	}
+	int[] sorted = new int[ids.length];
+	for (int i = 0; i < ids.length; i++) {
+	    sorted[counts[50 - getRating(ids[i])]++] = ids[i];
+	}
+	return sorted;
+    }
+
+    private int getRating(int id) {
+	// Not rated is after 0 stars
+	return Math.max(-1, buffer.get(ratingsPosition + id));
+    }
+
+    private Details getRecord(int id) {
+	int position = buffer.getInt(idsPosition + id * 4);
+	String[] fields = new String[FIELDS];
+	for (int i = 0; i < FIELDS; i++) {
+	    fields[i] = readString(position);
+	    position += 4 + Math.max(0, buffer.getInt(position));
+	}
+
+	Details details = new Details();
+	details.setAsin(fields[ASIN]);
+	details.setProductName(fields[NAME]);
+	if (fields[AUTHOR] != null) {
+	    details.setAuthors(new String[] { fields[AUTHOR] });
+	}
+	details.setReleaseDate(fields[RELEASE_DATE]);
+	details.setListPrice(fields[LIST_PRICE]);
+	details.setOurPrice(fields[OUR_PRICE]);
+	details.setSalesRank(fields[SALES_RANK]);
+	if (fields[RATING] != null) {
+	    Reviews reviews = new Reviews();
+	    reviews.setAvgCustomerRating(fields[RATING]);
+	    details.setReviews(reviews);
+	}
+	return details;
+    }
+
+    /**
+     * Reads a string written by <code>DetailsStore.writeString</code>.
+     */
+    private String readString(int position) {
+	int length = buffer.getInt(position);
+	if (length < 0) {
+	    return null;
+	}
+	byte[] bytes = new byte[length];
+	for (int i = 0; i < length; i++) {
+	    bytes[i] = buffer.get(position + 4 + i);
+	}
+	try {
+	    return new String(bytes, "UTF-8");
+	} catch (IOException ex) {
+	    // UTF-8 is always supported
+	    throw new RuntimeException(ex.toString());
+	}
+    }
+
+    //  Building the index.
+
+    /**
+     * Builds an index file from a catalog written by <code>Suck</code>.
+     * Each line of the catalog is the tab separated ASIN, name, author,
+     * release date, list price, our price, sales rank and average rating of
+     * a product, in UTF-8.
+     *
+     * @return the number of products
+     */
+    public static int build(File catalog, File index) throws IOException {
+	List products = new ArrayList();
+	BufferedReader reader = new BufferedReader(
+	    new InputStreamReader(new FileInputStream(catalog), "UTF-8"));
+	try {
+	    String line;
+	    while ((line = reader.readLine()) != null) {
+		String[] fields = parseLine(line);
+		if (fields != null) {
+		    products.add(fields);
+		}
+	    }
+	} finally {
+	    reader.close();
+	}
+
+	// A product which was dumped twice is kept once
+	Map byAsin = new TreeMap();
+	for (int i = 0; i < products.size(); i++) {
+	    String[] fields = (String[])products.get(i);
+	    byAsin.put(fields[ASIN], fields);
+	}
+	products = new ArrayList(byAsin.values());
+	// Sorting is stable so equal sales ranks stay in order of ASIN
+	Collections.sort(products, new Comparator() {
+		public int compare(Object o1, Object o2) {
+		    int rank1 = getSalesRank((String[])o1);
+		    int rank2 = getSalesRank((String[])o2);
+		    return (rank1 < rank2 ? -1 : (rank1 == rank2 ? 0 : 1));
+		}
+	    });
+	int size = products.size();
+
+	// The records and the postings of each word, which are in id order
+	ByteArrayOutputStream records = new ByteArrayOutputStream();
+	DataOutputStream out = new DataOutputStream(records);
+	int[] recordOffsets = new int[size];
+	byte[] ratings = new byte[size];
+	Map terms = new TreeMap();
+	for (int id = 0; id < size; id++) {
+	    String[] fields = (String[])products.get(id);
+	    recordOffsets[id] = out.size();
+	    for (int i = 0; i < FIELDS; i++) {
+		DetailsStore.writeString(out, fields[i]);
+	    }
+	    ratings[id] = getRating(fields);
+	    addWords(terms, fields[NAME], id);
+	    addWords(terms, fields[AUTHOR], id);
+	}
+	out.flush();
+
+	final List sorted = products;
+	Integer[] asinOrder = new Integer[size];
+	for (int id = 0; id < size; id++) {
+	    asinOrder[id] = new Integer(id);
+	}
+	Arrays.sort(asinOrder, new Comparator() {
+		public int compare(Object o1, Object o2) {
+		    String asin1 = ((String[])sorted.get(((Integer)o1).intValue()))[ASIN];
+		    String asin2 = ((String[])sorted.get(((Integer)o2).intValue()))[ASIN];
+		    return asin1.compareTo(asin2);
+		}
+	    });
+
+	ByteArrayOutputStream words = new ByteArrayOutputStream();
+	DataOutputStream wordsOut = new DataOutputStream(words);
+	ByteArrayOutputStream postings = new ByteArrayOutputStream();
+	ByteArrayOutputStream skips = new ByteArrayOutputStream();
+	DataOutputStream skipsOut = new DataOutputStream(skips);
+	int termCount = terms.size();
+	int[] wordOffsets = new int[termCount];
+	int[] postingOffsets = new int[termCount];
+	int[] docCounts = new int[termCount];
+	int[] skipOffsets = new int[termCount];
+	Iterator iter = terms.entrySet().iterator();
+	for (int term = 0; iter.hasNext(); term++) {
+	    Map.Entry entry = (Map.Entry)iter.next();
+	    wordOffsets[term] = wordsOut.size();
+	    DetailsStore.writeString(wordsOut, (String)entry.getKey());
+
+	    IdList ids = (IdList)entry.getValue();
+	    postingOffsets[term] = postings.size();
+	    docCounts[term] = ids.count;
+	    skipOffsets[term] = (ids.count > SKIP ? skipsOut.size() : -1);
+	    int last = -1;
+	    for (int i = 0; i < ids.count; i++) {
+		if (i > 0 && i % SKIP == 0) {
+		    skipsOut.writeInt(last);
+		    skipsOut.writeInt(postings.size() - postingOffsets[term]);
+		}
+		int gap = ids.ids[i] - last;
+		last = ids.ids[i];
+		while (gap >= 0x80) {
+		    postings.write((gap & 0x7f) | 0x80);
+		    gap >>>= 7;
+		}
+		postings.write(gap);
+	    }
+	}
+	wordsOut.flush();
+	skipsOut.flush();
+
+	int idsPosition = 28;
+	int ratingsPosition = idsPosition + size * 4;
+	int asinsPosition = ratingsPosition + size;
+	int termsPosition = asinsPosition + size * 4;
+	int recordsPosition = termsPosition + termCount * TERM_SIZE;
+	int wordsPosition = recordsPosition + records.size();
+	int postingsPosition = wordsPosition + words.size();
+	int skipsPosition = postingsPosition + postings.size();
+
+	DataOutputStream file = new DataOutputStream(
+	    new BufferedOutputStream(new FileOutputStream(index)));
+	try {
+	    file.writeInt(MAGIC);
+	    file.writeInt(size);
+	    file.writeInt(termCount);
+	    file.writeInt(idsPosition);
+	    file.writeInt(ratingsPosition);
+	    file.writeInt(asinsPosition);
+	    file.writeInt(termsPosition);
+	    for (int id = 0; id < size; id++) {
+		file.writeInt(recordsPosition + recordOffsets[id]);
+	    }
+	    file.write(ratings);
+	    for (int i = 0; i < size; i++) {
+		file.writeInt(asinOrder[i].intValue());
+	    }
+	    for (int term = 0; term < termCount; term++) {
+		file.writeInt(wordsPosition + wordOffsets[term]);
+		file.writeInt(postingsPosition + postingOffsets[term]);
+		file.writeInt(docCounts[term]);
+		file.writeInt(skipOffsets[term] < 0 ? -1 : skipsPosition + skipOffsets[term]);
+	    }
+	    records.writeTo(file);
+	    words.writeTo(file);
+	    postings.writeTo(file);
+	    skips.writeTo(file);
+	} finally {
+	    file.close();
+	}
+	return size;
+    }
+
+    /**
+     * Splits a line of the catalog. Suck writes null values as "null".
+     *
+     * @return the fields or null if the line isn't a product
+     */
+    private static String[] parseLine(String line) {
+	String[] values = line.split("\t", -1);
+	if (values.length < FIELDS - 1 || values[ASIN].length() == 0) {
+	    return null;
+	}
+	String[] fields = new String[FIELDS];
+	for (int i = 0; i < FIELDS && i < values.length; i++) {
+	    String value = values[i];
+	    if (value.length() > 0 && !value.equals("null")) {
+		fields[i] = value;
+	    }
+	}
+	// Suck writes 0.0 for a product without reviews. A rating is at
+	// least one star.
+	if ("0.0".equals(fields[RATING])) {
+	    fields[RATING] = null;
+	}
+	return fields;
+    }
+
+    private static int getSalesRank(String[] fields) {
+	if (fields[SALES_RANK] != null) {
+	    try {
+		// Ranks are formatted as 1,234
+		return Integer.parseInt(fields[SALES_RANK].replaceAll("[^0-9]", ""));
+	    } catch (NumberFormatException ex) {
+		// drop through, not ranked
+	    }
+	}
+	return Integer.MAX_VALUE;
+    }
+
+    private static byte getRating(String[] fields) {
+	if (fields[RATING] != null) {
+	    try {
+		float value = Float.parseFloat(fields[RATING]);
+		return (byte)Math.max(0, Math.min(50, Math.round(value * 10f)));
+	    } catch (NumberFormatException ex) {
+		// drop through, not rated
+	    }
+	}
+	return -1;
+    }
+
+    private static void addWords(Map terms, String text, int id) {
+	String[] words = DetailsIndex.tokenize(text);
+	for (int i = 0; i < words.length; i++) {
+	    IdList ids = (IdList)terms.get(words[i]);
+	    if (ids == null) {
+		ids = new IdList();
+		terms.put(words[i], ids);
+	    }
+	    ids.add(id);
+	}
+    }
+
+    /**
+     * The ids of the products which contain a word in ascending order.
+     */
+    private static class IdList {
+	int[] ids = new int[4];
+	int count;
+
+	void add(int id) {
+	    if (count > 0 && ids[count - 1] == id) {
+		// already added for this product
+		return;
+	    }
+	    if (count == ids.length) {
+		int[] temp = new int[count * 2];
+		System.arraycopy(ids, 0, temp, 0, count);
+		ids = temp;
+	    }
+	    ids[count++] = id;
+	}
+    }
+
+    /**
+     * Builds an index from a catalog and optionally searches it.
+     *
+     * usage: java com.sun.jamazon.CatalogIndex catalog index [keywords]
+     */
+    public static void main(String[] args) throws IOException {
+	if (args.length < 2) {
+	    System.err.println("usage: java com.sun.jamazon.CatalogIndex catalog index [keywords]");
+	    System.exit(1);
+	}
+	File index = new File(args[1]);
+	if (!args[0].equals("-")) {
+	    int size = build(new File(args[0]), index);
+	    System.out.println(size + " products written to " + index.getAbsolutePath());
+	}
+	if (args.length > 2) {
+	    CatalogIndex catalog = new CatalogIndex(index);
+	    long start = System.currentTimeMillis();
+	    ProductInfo info = catalog.search(args[2], null, 1);
+	    long time = System.currentTimeMillis() - start;
+	    System.out.println(info.getTotalResults() + " results in " + time + "ms");
+	    Details[] details = info.getDetails();
+	    for (int i = 0; i < details.length; i++) {
+		System.out.println(details[i].getAsin() + "\t" +
+				   details[i].getSalesRank() + "\t" +
+				   details[i].getProductName());
+	    }
+	}
+    }
+}
@@ -0,0 +1,427 @@
+/*
+ * Copyright (c) 2018 Oracle and/or its affiliates. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Distribution License v. 1.0, which is available at
+ * http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+
+package com.sun.jamazon;
+
+import java.awt.Image;
+
+import java.io.StringReader;
+
+import java.net.URL;
+
+import java.util.Dictionary;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+
+import javax.swing.JEditorPane;
+import javax.swing.SwingUtilities;
+
+import javax.swing.event.HyperlinkEvent;
+import javax.swing.event.HyperlinkListener;
+
+import javax.swing.text.Element;
+import javax.swing.text.html.HTMLDocument;
+import javax.swing.text.html.HTMLEditorKit;
+
+import myamazonclient.AmazonClientGenClient.Details;
+import myamazonclient.AmazonClientGenClient.Reviews;
+import myamazonclient.AmazonClientGenClient.CustomerReview;
+
+/**
+ * Displays the product details pages in a <code>JEditorPane</code>.
+ * <p>
+ * The pages are created from a template and parsed into an HTMLDocument on
+ * a background thread so the event dispatch thread only has to swap the
+ * document into the pane. The most recently displayed documents are cached
+ * by ASIN and the pages of the neighbouring rows can be prepared in advance
+ * so that moving the selection through the table updates the pane at once.
+ * <p>
+ * Only the first few customer reviews are in the initial page. The rest
+ * are added in chunks when the "more reviews" link is followed. The
+ * product image is loaded by the <code>ImageService</code> and added to
+ * the page when it's ready.
+ */
+public class DetailPages {
+
+    private static final int CACHE_SIZE = 32;
+    private static final int REVIEW_CHUNK = 5;
+
+    private static final String MORE_LINK = "more-reviews";
+
+    private static final PageTemplate PAGE = new PageTemplate(
+	"<html><head></head><body>" +
+	"<table><tr><td id=\"image\">@IMAGE@</td><td style=\"vertical-align: top;\">" +
+	"<h2>@TITLE@</h2>" +
+	"<p><b>Publisher: </b>@MANUFACTURER@; (@RELEASE_DATE@)" +
+	"<br><b>ISBN: </b>@ISBN@" +
+	"<br><b>Sales Rank: </b>@SALES_RANK@" +
+	"</td></tr></table>" +
+	"@REVIEWS@" +
+	"</body></html>");
+
+    private static final PageTemplate REVIEWS = new PageTemplate(
+	"<b>Average Customer Review: </b>@RATING@ Based on @TOTAL@ reviews<p><hr>" +
+	"<div id=\"reviews\">@CHUNK@</div>@MORE@");
+
+    private static final PageTemplate REVIEW = new PageTemplate(
+	"<b>Rating: @RATING@ @SUMMARY@</b><p>@COMMENT@<p>");
+
+    private static final String MORE =
+	"<p id=\"more\"><a href=\"" + MORE_LINK + "\">More reviews...</a></p>";
+
+    private static final PageTemplate IMAGE = new PageTemplate(
+	"<img src=\"@URL@\">");
+
+    // The document property which ImageView looks up the images in
+    private static final String IMAGE_CACHE = "imageCache";
+
+    private static final String NO_DETAILS =
+	"<html><body><i>No product details</i></body></html>";
+
+    private JEditorPane pane;
+    private ImageService images;
+    private ImageService.Request imageRequest;
+
+    // Used to build the documents on the worker thread
+    private HTMLEditorKit kit = new HTMLEditorKit();
+
+    // ASIN -> Page. Only used on the event dispatch thread.
+    private Map cache = new LinkedHashMap(CACHE_SIZE, 0.75f, true) {
+	    protected boolean removeEldestEntry(Map.Entry eldest) {
+		return size() > CACHE_SIZE;
+	    }
+	};
+
+    // The ASINs of the pages which are queued or being built
+    private Set pending = new HashSet();
+
+    private String currentAsin;
+    private Page currentPage;
+
+    // Requests for the worker thread. The most recent is first.
+    private LinkedList queue = new LinkedList();
+    private Thread worker;
+
+    public DetailPages(JEditorPane pane, ImageService images) {
+	this.pane = pane;
+	this.images = images;
+	pane.addHyperlinkListener(new HyperlinkListener() {
+		public void hyperlinkUpdate(HyperlinkEvent evt) {
+		    if (evt.getEventType() == HyperlinkEvent.EventType.ACTIVATED &&
+			MORE_LINK.equals(evt.getDescription())) {
+			showMoreReviews();
+		    }
+		}
+	    });
+    }
+
+    /**
+     * Displays the page for the details. If the page isn't cached, it
+     * is built on the worker thread and displayed when it's ready unless
+     * another page has been requested in the meantime.
+     * Must be called on the event dispatch thread.
+     */
+    public void show(Details details) {
+	if (details == null) {
+	    showText(NO_DETAILS);
+	    return;
+	}
+
+	currentAsin = details.getAsin();
+	Page page = (Page)cache.get(currentAsin);
+	if (page != null) {
+	    display(page);
+	} else {
+	    request(details, true);
+	}
+    }
+
+    /**
+     * Displays the html text in a new document. JEditorPane.setText
+     * would replace the contents of the current document which may be
+     * one of the cached pages.
+     */
+    public void showText(String text) {
+	cancelImage();
+	currentAsin = null;
+	currentPage = null;
+	pane.setDocument(pane.getEditorKit().createDefaultDocument());
+	pane.setText(text);
+	pane.setCaretPosition(0);
+    }
+
+    /**
+     * Builds the pages for the details in the background so that they're
+     * ready to be shown.
+     */
+    public void prefetch(Details details) {
+	if (details != null && !cache.containsKey(details.getAsin())) {
+	    request(details, false);
+	}
+    }
+
+    private void display(Page page) {
+	cancelImage();
+	currentPage = page;
+	pane.setDocument(page.document);
+	pane.setCaretPosition(0);
+
+	if (page.imageUrl != null) {
+	    imageRequest = images.load(page.imageUrl, 0, 0, new ImageListener(page));
+	}
+    }
+
+    private void cancelImage() {
+	if (imageRequest != null) {
+	    imageRequest.cancel();
+	    imageRequest = null;
+	}
+    }
+
+    /**
+     * Called on the event dispatch thread when a page has been built.
+     */
+    private void pageBuilt(String asin, Page page) {
+	pending.remove(asin);
+	if (page == null) {
+	    return;
+	}
+	cache.put(asin, page);
+	if (asin != null && asin.equals(currentAsin)) {
+	    display(page);
+	}
+    }
+
+    private void showMoreReviews() {
+	Page page = currentPage;
+	if (page == null || page.chunks == null) {
+	    return;
+	}
+
+	HTMLDocument doc = page.document;
+	try {
+	    Element reviews = doc.getElement("reviews");
+	    doc.insertBeforeEnd(reviews, page.chunks[page.nextChunk++]);
+	    if (page.nextChunk == page.chunks.length) {
+		page.chunks = null;
+		// setOuterHTML ignores an empty string so remove the text
+		Element more = doc.getElement("more");
+		int end = Math.min(more.getEndOffset(), doc.getLength());
+		doc.remove(more.getStartOffset(), end - more.getStartOffset());
+	    }
+	} catch (Exception ex) {
+	    ex.printStackTrace();
+	}
+    }
+
+    //  The worker thread
+
+    private synchronized void request(Details details, boolean first) {
+	String asin = details.getAsin();
+	if (pending.contains(asin)) {
+	    Object queued = findRequest(asin);
+	    if (queued == null || !first) {
+		// Already being built. pageBuilt displays it if it's current.
+		return;
+	    }
+	    // Move to the front of the queue
+	    queue.remove(queued);
+	}
+	pending.add(asin);
+
+	if (first) {
+	    queue.addFirst(details);
+	} else {
+	    queue.addLast(details);
+	}
+
+	if (worker == null) {
+	    worker = new Thread(new Runnable() {
+		    public void run() {
+			while (true) {
+			    Details next = nextRequest();
+			    final String asin = next.getAsin();
+			    final Page page = build(next);
+			    SwingUtilities.invokeLater(new Runnable() {
+				    public void run() {
+					pageBuilt(asin, page);
+				    }
+				});
+			}
+		    }
+		}, "JAmazon details pages");
+	    worker.setDaemon(true);
+	    worker.setPriority(Thread.NORM_PRIORITY - 1);
+	    worker.start();
+	}
+	notifyAll();
+    }
+
+    private Object findRequest(String asin) {
+	for (int i = 0; i < queue.size(); i++) {
+	    Details details = (Details)queue.get(i);
+	    if (asin.equals(details.getAsin())) {
+		return details;
+	    }
+	}
+	return null;
+    }
+
+    private synchronized Details nextRequest() {
+	while (queue.isEmpty()) {
+	    try {
+		wait();
+	    } catch (InterruptedException ex) {
+		// drop through
+	    }
+	}
+	return (Details)queue.removeFirst();
+    }
+
+    /**
+     * Creates the HTML for the page and parses it into a document.
+     */
+    private Page build(Details details) {
+	Page page = new Page();
+	try {
+	    String html = createPage(details, REVIEW_CHUNK, page);
+
+	    HTMLDocument doc = (HTMLDocument)kit.createDefaultDocument();
+	    // Parse the whole page now rather than when it's displayed
+	    doc.setAsynchronousLoadPriority(-1);
+	    kit.read(new StringReader(html), doc, 0);
+	    page.document = doc;
+	} catch (Exception ex) {
+	    ex.printStackTrace();
+	    return null;
+	}
+	return page;
+    }
+
+    /**
+     * Creates the HTML page for the details.
+     *
+     * @param reviewCount the number of customer reviews to put on the page
+     * @param page if not null, the rest of the reviews are split into chunks
+     *        in the page
+     */
+    static String createPage(Details details, int reviewCount, Page page) {
+	if (details == null) {
+	    return NO_DETAILS;
+	}
+
+	Map values = new HashMap();
+	if (page != null) {
+	    // The image is added by the ImageService
+	    page.imageUrl = details.getImageUrlMedium();
+	} else if (details.getImageUrlMedium() != null) {
+	    Map imageValues = new HashMap();
+	    imageValues.put("URL", details.getImageUrlMedium());
+	    values.put("IMAGE", IMAGE.render(imageValues));
+	}
+	values.put("TITLE", details.getProductName());
+	values.put("MANUFACTURER", details.getManufacturer());
+	values.put("RELEASE_DATE", details.getReleaseDate());
+	values.put("ISBN", details.getIsbn());
+	values.put("SALES_RANK", details.getSalesRank());
+
+	Reviews reviews = details.getReviews();
+	if (reviews != null) {
+	    // The reviews are only read back from the store for the page
+	    CustomerReview[] crevs = ReviewStore.getCustomerReviews(details);
+	    if (crevs == null) {
+		crevs = new CustomerReview[0];
+	    }
+
+	    Map reviewValues = new HashMap();
+	    reviewValues.put("RATING", reviews.getAvgCustomerRating());
+	    reviewValues.put("TOTAL", reviews.getTotalCustomerReviews());
+	    reviewValues.put("CHUNK", createReviews(crevs, 0, reviewCount));
+
+	    if (page != null && crevs.length > reviewCount) {
+		int chunks = (crevs.length - reviewCount + REVIEW_CHUNK - 1) / REVIEW_CHUNK;
+		page.chunks = new String[chunks];
+		for (int i = 0; i < chunks; i++) {
+		    int start = reviewCount + i * REVIEW_CHUNK;
+		    page.chunks[i] = createReviews(crevs, start, start + REVIEW_CHUNK);
+		}
+		reviewValues.put("MORE", MORE);
+	    }
+	    values.put("REVIEWS", REVIEWS.render(reviewValues));
+	}
+	return PAGE.render(values);
+    }
+
+    private static String createReviews(CustomerReview[] crevs, int start, int end) {
+	StringBuffer buffer = new StringBuffer();
+	Map values = new HashMap();
+	for (int i = start; i < end && i < crevs.length; i++) {
+	    values.put("RATING", crevs[i].getRating());
+	    values.put("SUMMARY", crevs[i].getSummary());
+	    values.put("COMMENT", crevs[i].getComment());
+	    REVIEW.render(values, buffer);
+	}
+	return buffer.toString();
+    }
+
+    /**
+     * Adds the image to the page when it has been loaded. The image is put
+     * in the image cache of the document so that the view doesn't load
+     * it again.
+     */
+    private class ImageListener implements ImageService.Listener {
+	private Page page;
+
+	public ImageListener(Page page) {
+	    this.page = page;
+	}
+
+	public void imageLoaded(ImageService.Request request, Image image) {
+	    String url = page.imageUrl;
+	    page.imageUrl = null;
+	    if (image == null) {
+		return;
+	    }
+
+	    HTMLDocument doc = page.document;
+	    try {
+		Dictionary cache = (Dictionary)doc.getProperty(IMAGE_CACHE);
+		if (cache == null) {
+		    cache = new Hashtable();
+		    doc.putProperty(IMAGE_CACHE, cache);
+		}
+		cache.put(new URL(url), image);
+
+		Map values = new HashMap();
+		values.put("URL", url);
+		doc.setInnerHTML(doc.getElement("image"), IMAGE.render(values));
+	    } catch (Exception ex) {
+		ex.printStackTrace();
+	    }
+	}
+    }
+
+    /**
+     * A parsed page and the reviews which haven't been added to it yet.
+     */
+    static class Page {
+	HTMLDocument document;
+	String[] chunks;
+	int nextChunk;
+
+	// The image which hasn't been added to the page
+	String imageUrl;
+    }
+}
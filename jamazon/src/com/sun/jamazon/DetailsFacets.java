@@ -0,0 +1,383 @@
+/*
+ * Copyright (c) 2018 Oracle and/or its affiliates. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Distribution License v. 1.0, which is available at
+ * http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+
+package com.sun.jamazon;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+import javax.swing.event.EventListenerList;
+
+import myamazonclient.AmazonClientGenClient.Details;
+import myamazonclient.AmazonClientGenClient.Reviews;
+
+/**
+ * Counts the distribution of the details in a <code>DetailsTableModel</code>
+ * by price range, average rating, manufacturer and release year. The counts
+ * are updated as each page of details is added rather than by scanning the
+ * model.
+ * <p>
+ * Values of the facets may be selected to filter the model. A row is
+ * accepted if, for every facet which has a selection, the value of the
+ * row is one of the selected values.
+ *
+ * @see DetailsTableModel#setFacetSelection
+ */
+public class DetailsFacets {
+
+    public static final int PRICE = 0;
+    public static final int RATING = 1;
+    public static final int MANUFACTURER = 2;
+    public static final int YEAR = 3;
+
+    public static final int NUM_FACETS = 4;
+
+    public static final String[] FACET_NAMES = {
+	"Price", "Rating", "Publisher", "Year"
+    };
+
+    private static final float[] PRICE_LIMITS = { 10f, 25f, 50f, 100f };
+    private static final String[] PRICE_LABELS = {
+	"Under $10", "$10 - $25", "$25 - $50", "$50 - $100", "$100 & Above"
+    };
+    private static final String NO_PRICE = "No price";
+    private static final String[] RATING_LABELS = {
+	"0 - 1 stars", "1 - 2 stars", "2 - 3 stars", "3 - 4 stars", "4 - 5 stars"
+    };
+    private static final String NO_RATING = "Not rated";
+    private static final String UNKNOWN = "Unknown";
+
+    // The values of each facet in the order they were first seen
+    private List[] values = new List[NUM_FACETS];
+    private Map[] valuesByLabel = new Map[NUM_FACETS];
+
+    // rowValues[facet][id] is the index of the value of the row
+    private int[][] rowValues = new int[NUM_FACETS][64];
+    private int size;
+
+    // The indexes of the selected values of each facet or null
+    private BitSet[] selection = new BitSet[NUM_FACETS];
+
+    // The labels of the selected values. These may not have been counted yet.
+    private String[][] pending = new String[NUM_FACETS][];
+
+    private EventListenerList listenerList = new EventListenerList();
+
+    public DetailsFacets() {
+	for (int i = 0; i < NUM_FACETS; i++) {
+	    values[i] = new ArrayList();
+	    valuesByLabel[i] = new HashMap();
+	}
+    }
+
+    /**
+     * Removes all the counts and the selected values. A selection made for
+     * one search could hide all of the results of the next one.
+     */
+    public void clear() {
+	for (int i = 0; i < NUM_FACETS; i++) {
+	    values[i].clear();
+	    valuesByLabel[i].clear();
+	    selection[i] = null;
+	    pending[i] = null;
+	}
+	size = 0;
+    }
+
+    /**
+     * Counts the details. The details must be added in the order of
+     * their ids.
+     *
+     * @param id the id of the row in the model
+     * @param row the row that was created for the details
+     */
+    public void add(int id, Details details, ProductRow row) {
+	if (id != size) {
+	    throw new IllegalArgumentException("Expected id " + size + " not " + id);
+	}
+	if (size == rowValues[0].length) {
+	    for (int i = 0; i < NUM_FACETS; i++) {
+		int[] temp = new int[size * 2];
+		System.arraycopy(rowValues[i], 0, temp, 0, size);
+		rowValues[i] = temp;
+	    }
+	}
+	size++;
+
+	count(PRICE, id, getPriceLabel(row.getOurPrice()));
+	count(RATING, id, getRatingLabel(details.getReviews()));
+	count(MANUFACTURER, id, getLabel(details.getManufacturer()));
+	count(YEAR, id, getYear(details.getReleaseDate()));
+    }
+
+    private void count(int facet, int id, String label) {
+	Value value = (Value)valuesByLabel[facet].get(label);
+	if (value == null) {
+	    value = new Value(facet, label, values[facet].size());
+	    values[facet].add(value);
+	    valuesByLabel[facet].put(label, value);
+
+	    // A value which was selected before it had any rows
+	    if (selection[facet] != null && isPendingSelection(facet, label)) {
+		selection[facet].set(value.index);
+	    }
+	}
+	value.count++;
+	rowValues[facet][id] = value.index;
+    }
+
+    /**
+     * Returns the values of a facet which have been counted. Prices and
+     * ratings are in ascending order, years are in descending order and
+     * manufacturers are in descending order of their counts.
+     */
+    public Value[] getValues(int facet) {
+	Value[] result = (Value[])values[facet].toArray(new Value[values[facet].size()]);
+	Arrays.sort(result, new ValueComparator(facet));
+	return result;
+    }
+
+    /**
+     * Selects the values of a facet which will be accepted.
+     *
+     * @param labels the labels of the values to accept; null or empty to
+     *        accept all the values of the facet
+     */
+    public void setSelection(int facet, String[] labels) {
+	if (labels == null || labels.length == 0) {
+	    selection[facet] = null;
+	    pending[facet] = null;
+	    return;
+	}
+
+	selection[facet] = new BitSet();
+	pending[facet] = labels;
+	for (int i = 0; i < labels.length; i++) {
+	    Value value = (Value)valuesByLabel[facet].get(labels[i]);
+	    if (value != null) {
+		selection[facet].set(value.index);
+	    }
+	}
+    }
+
+    /**
+     * Returns the labels of the selected values of a facet or null if all
+     * the values are accepted.
+     */
+    public String[] getSelection(int facet) {
+	return pending[facet];
+    }
+
+    private boolean isPendingSelection(int facet, String label) {
+	String[] labels = pending[facet];
+	for (int i = 0; labels != null && i < labels.length; i++) {
+	    if (labels[i].equals(label)) {
+		return true;
+	    }
+	}
+	return false;
+    }
+
+    /**
+     * Returns true if any of the facets has selected values.
+     */
+    public boolean hasSelection() {
+	for (int i = 0; i < NUM_FACETS; i++) {
+	    if (selection[i] != null) {
+		return true;
+	    }
+	}
+	return false;
+    }
+
+    /**
+     * Returns true if the row with the id has the selected values.
+     */
+    public boolean accept(int id) {
+	if (id >= size) {
+	    return false;
+	}
+	for (int i = 0; i < NUM_FACETS; i++) {
+	    if (selection[i] != null && !selection[i].get(rowValues[i][id])) {
+		return false;
+	    }
+	}
+	return true;
+    }
+
+    public void addChangeListener(ChangeListener l) {
+	listenerList.add(ChangeListener.class, l);
+    }
+
+    public void removeChangeListener(ChangeListener l) {
+	listenerList.remove(ChangeListener.class, l);
+    }
+
+    /**
+     * Notifies the listeners that the counts have changed. This is called by
+     * the model once for each page of details rather than for every row.
+     */
+    public void fireStateChanged() {
+	Object[] listeners = listenerList.getListenerList();
+	ChangeEvent evt = null;
+	for (int i = listeners.length - 2; i >= 0; i -= 2) {
+	    if (listeners[i] == ChangeListener.class) {
+		if (evt == null) {
+		    evt = new ChangeEvent(this);
+		}
+		((ChangeListener)listeners[i + 1]).stateChanged(evt);
+	    }
+	}
+    }
+
+    //  Bucketing of the values
+
+    private static String getPriceLabel(float price) {
+	if (price <= 0f) {
+	    return NO_PRICE;
+	}
+	for (int i = 0; i < PRICE_LIMITS.length; i++) {
+	    if (price < PRICE_LIMITS[i]) {
+		return PRICE_LABELS[i];
+	    }
+	}
+	return PRICE_LABELS[PRICE_LIMITS.length];
+    }
+
+    private static String getRatingLabel(Reviews reviews) {
+	if (reviews == null || reviews.getAvgCustomerRating() == null) {
+	    return NO_RATING;
+	}
+	try {
+	    float rating = Float.parseFloat(reviews.getAvgCustomerRating());
+	    int bucket = Math.min(Math.max((int)rating, 0), RATING_LABELS.length - 1);
+	    return RATING_LABELS[bucket];
+	} catch (NumberFormatException ex) {
+	    return NO_RATING;
+	}
+    }
+
+    private static String getLabel(String value) {
+	if (value == null || value.trim().length() == 0) {
+	    return UNKNOWN;
+	}
+	return value.trim();
+    }
+
+    /**
+     * Finds the year in a release date such as "01 January, 2004".
+     */
+    private static String getYear(String date) {
+	if (date != null) {
+	    for (int i = date.length() - 4; i >= 0; i--) {
+		if (isYear(date, i)) {
+		    return date.substring(i, i + 4);
+		}
+	    }
+	}
+	return UNKNOWN;
+    }
+
+    private static boolean isYear(String date, int start) {
+	for (int i = start; i < start + 4; i++) {
+	    if (!Character.isDigit(date.charAt(i))) {
+		return false;
+	    }
+	}
+	// Not part of a longer number
+	return (start == 0 || !Character.isDigit(date.charAt(start - 1))) &&
+	    (start + 4 == date.length() || !Character.isDigit(date.charAt(start + 4)));
+    }
+
+    /**
+     * A value of a facet and the number of rows which have it.
+     */
+    public static class Value {
+
+	private int facet;
+	private String label;
+	private int index;
+	private int count;
+
+	Value(int facet, String label, int index) {
+	    this.facet = facet;
+	    this.label = label;
+	    this.index = index;
+	}
+
+	public int getFacet() {
+	    return facet;
+	}
+
+	public String getLabel() {
+	    return label;
+	}
+
+	public int getCount() {
+	    return count;
+	}
+
+	public String toString() {
+	    return label + " (" + count + ")";
+	}
+    }
+
+    private static class ValueComparator implements Comparator {
+
+	private int facet;
+
+	public ValueComparator(int facet) {
+	    this.facet = facet;
+	}
+
+	public int compare(Object o1, Object o2) {
+	    Value v1 = (Value)o1;
+	    Value v2 = (Value)o2;
+
+	    switch (facet) {
+	    case PRICE:
+		return getOrder(v1.label, PRICE_LABELS) - getOrder(v2.label, PRICE_LABELS);
+
+	    case RATING:
+		return getOrder(v1.label, RATING_LABELS) - getOrder(v2.label, RATING_LABELS);
+
+	    case YEAR:
+		if (UNKNOWN.equals(v1.label) || UNKNOWN.equals(v2.label)) {
+		    return getOrder(v1.label, null) - getOrder(v2.label, null);
+		}
+		return v2.label.compareTo(v1.label);
+
+	    default:
+		if (v1.count != v2.count) {
+		    return v2.count - v1.count;
+		}
+		return v1.label.compareTo(v2.label);
+	    }
+	}
+
+	// Labels which aren't in the list are last
+	private int getOrder(String label, String[] labels) {
+	    int length = (labels == null ? 0 : labels.length);
+	    for (int i = 0; i < length; i++) {
+		if (labels[i].equals(label)) {
+		    return i;
+		}
+	    }
+	    return (UNKNOWN.equals(label) ? length + 1 : length);
+	}
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright (c) 2018 Oracle and/or its affiliates. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Distribution License v. 1.0, which is available at
+ * http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+
+package com.sun.jamazon;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import myamazonclient.AmazonClientGenClient.Details;
+
+/**
+ * An inverted index of the words in the product name, authors and
+ * manufacturer of the details in a <code>DetailsTableModel</code>. Each
+ * entry is identified by the order in which it was added to the index.
+ * <p>
+ * The words are kept in sorted order so that all the words which start
+ * with a prefix can be found without scanning the whole index. A query
+ * matches an entry if every word of the query is the prefix of a word in
+ * that entry.
+ *
+ * @see DetailsTableModel#setFilter
+ */
+public class DetailsIndex {
+
+    // Maps the lower case words to their Postings
+    private SortedMap terms = new TreeMap();
+
+    private int size;
+
+    /**
+     * Removes all the entries from the index.
+     */
+    public void clear() {
+	terms.clear();
+	size = 0;
+    }
+
+    /**
+     * Returns the number of entries in the index.
+     */
+    public int size() {
+	return size;
+    }
+
+    /**
+     * Adds the words of the details to the index.
+     *
+     * @return the id of the new entry
+     */
+    public int add(Details details) {
+	int id = size++;
+	if (details != null) {
+	    addText(details.getProductName(), id);
+	    addText(details.getManufacturer(), id);
+
+	    String[] authors = details.getAuthors();
+	    if (authors != null) {
+		for (int i = 0; i < authors.length; i++) {
+		    addText(authors[i], id);
+		}
+	    }
+	}
+	return id;
+    }
+
+    private void addText(String text, int id) {
+	String[] words = tokenize(text);
+	for (int i = 0; i < words.length; i++) {
+	    Postings postings = (Postings)terms.get(words[i]);
+	    if (postings == null) {
+		postings = new Postings();
+		terms.put(words[i], postings);
+	    }
+	    postings.add(id);
+	}
+    }
+
+    /**
+     * Finds the entries which match all the words in the query.
+     *
+     * @return the ids of the matching entries or null if the query doesn't
+     *         contain any words
+     */
+    public BitSet search(String query) {
+	String[] words = tokenize(query);
+	if (words.length == 0) {
+	    return null;
+	}
+
+	BitSet result = null;
+	for (int i = 0; i < words.length; i++) {
+	    BitSet matches = new BitSet(size);
+
+	    SortedMap range = terms.subMap(words[i], words[i] + Character.MAX_VALUE);
+	    Iterator iter = range.values().iterator();
+	    while (iter.hasNext()) {
+		((Postings)iter.next()).addTo(matches);
+	    }
+
+	    if (result == null) {
+		result = matches;
+	    } else {
+		result.and(matches);
+	    }
+	    if (result.isEmpty()) {
+		break;
+	    }
+	}
+	return result;
+    }
+
+    /**
+     * Returns true if every word of the query is the prefix of a word
+     * in the details. This is used to test new entries against a filter
+     * without searching the whole index again.
+     *
+     * @param words a query which has been split with <code>tokenize</code>
+     */
+    public static boolean matches(Details details, String[] words) {
+	if (details == null) {
+	    return false;
+	}
+
+	List text = new ArrayList();
+	text.add(details.getProductName());
+	text.add(details.getManufacturer());
+	String[] authors = details.getAuthors();
+	if (authors != null) {
+	    for (int i = 0; i < authors.length; i++) {
+		text.add(authors[i]);
+	    }
+	}
+
+	List entry = new ArrayList();
+	for (int i = 0; i < text.size(); i++) {
+	    String[] tokens = tokenize((String)text.get(i));
+	    for (int j = 0; j < tokens.length; j++) {
+		entry.add(tokens[j]);
+	    }
+	}
+
+	for (int i = 0; i < words.length; i++) {
+	    boolean found = false;
+	    for (int j = 0; j < entry.size() && !found; j++) {
+		found = ((String)entry.get(j)).startsWith(words[i]);
+	    }
+	    if (!found) {
+		return false;
+	    }
+	}
+	return true;
+    }
+
+    /**
+     * Splits the text into lower case words of letters and digits.
+     */
+    public static String[] tokenize(String text) {
+	if (text == null) {
+	    return new String[0];
+	}
+
+	List words = new ArrayList();
+	int length = text.length();
+	int start = -1;
+	for (int i = 0; i <= length; i++) {
+	    if (i < length && Character.isLetterOrDigit(text.charAt(i))) {
+		if (start == -1) {
+		    start = i;
+		}
+	    } else if (start != -1) {
+		words.add(text.substring(start, i).toLowerCase());
+		start = -1;
+	    }
+	}
+	return (String[])words.toArray(new String[words.size()]);
+    }
+
+    /**
+     * The ids of the entries which contain a word in ascending order.
+     */
+    private static class Postings {
+
+	private int[] ids = new int[4];
+	private int count;
+
+	public void add(int id) {
+	    if (count > 0 && ids[count - 1] == id) {
+		// already added for this entry
+		return;
+	    }
+	    if (count == ids.length) {
+		int[] temp = new int[count * 2];
+		System.arraycopy(ids, 0, temp, 0, count);
+		ids = temp;
+	    }
+	    ids[count++] = id;
+	}
+
+	public void addTo(BitSet bits) {
+	    for (int i = 0; i < count; i++) {
+		bits.set(ids[i]);
+	    }
+	}
+    }
+}
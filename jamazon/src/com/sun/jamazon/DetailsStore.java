@@ -0,0 +1,403 @@
+/*
+ * Copyright (c) 2018 Oracle and/or its affiliates. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Distribution License v. 1.0, which is available at
+ * http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+
+package com.sun.jamazon;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import myamazonclient.AmazonClientGenClient.Details;
+import myamazonclient.AmazonClientGenClient.Reviews;
+import myamazonclient.AmazonClientGenClient.CustomerReview;
+
+/**
+ * Holds the complete Details records for a <code>DetailsTableModel</code>.
+ * Each record is written to a segment file as it is added and only the most
+ * recently used records are kept on the heap. The size of the records kept
+ * in memory is limited by a budget which may be set with the
+ * <code>jamazon.details.budget</code> system property (in bytes).
+ * <p>
+ * Only the properties of the Details which are displayed by the client are
+ * stored. If the segment file can't be created then all the records are
+ * kept in memory.
+ */
+public class DetailsStore {
+
+    private static final int DEFAULT_BUDGET = 8 * 1024 * 1024;
+
+    private int budget;
+
+    // Recently used records in access order. Integer id -> Entry
+    private Map cache = new LinkedHashMap(64, 0.75f, true);
+    private int cacheSize;
+
+    private RandomAccessFile segment;
+    private File segmentFile;
+    private long segmentEnd;
+    private boolean spill = true;
+
+    // The location of each record in the segment
+    private long[] offsets = new long[64];
+    private int[] lengths = new int[64];
+    private int size;
+
+    public DetailsStore() {
+	this(Integer.getInteger("jamazon.details.budget", DEFAULT_BUDGET).intValue());
+    }
+
+    /**
+     * @param budget the approximate number of bytes of records to keep
+     *        in memory
+     */
+    public DetailsStore(int budget) {
+	this.budget = budget;
+    }
+
+    /**
+     * Returns the number of records in the store.
+     */
+    public synchronized int size() {
+	return size;
+    }
+
+    /**
+     * Removes all the records. The segment file is reused.
+     */
+    public synchronized void clear() {
+	cache.clear();
+	cacheSize = 0;
+	size = 0;
+	segmentEnd = 0L;
+	if (segment != null) {
+	    try {
+		segment.setLength(0L);
+	    } catch (IOException ex) {
+		ex.printStackTrace();
+	    }
+	}
+    }
+
+    /**
+     * Adds a record to the store.
+     *
+     * @return the id of the record
+     */
+    public synchronized int add(Details details) {
+	int id = size++;
+	if (id == offsets.length) {
+	    long[] tempOffsets = new long[id * 2];
+	    System.arraycopy(offsets, 0, tempOffsets, 0, id);
+	    offsets = tempOffsets;
+
+	    int[] tempLengths = new int[id * 2];
+	    System.arraycopy(lengths, 0, tempLengths, 0, id);
+	    lengths = tempLengths;
+	}
+
+	if (details != null) {
+	    share(details);
+	}
+
+	int length = 0;
+	if (details != null && openSegment()) {
+	    try {
+		byte[] data = encode(details);
+		segment.seek(segmentEnd);
+		segment.write(data);
+
+		offsets[id] = segmentEnd;
+		length = data.length;
+		segmentEnd += length;
+	    } catch (IOException ex) {
+		// Stop spilling. Records which were already written can
+		// still be read.
+		ex.printStackTrace();
+		spill = false;
+	    }
+	}
+	lengths[id] = length;
+	put(id, details, length);
+
+	return id;
+    }
+
+    /**
+     * Returns the record with the id. The record will be read from the
+     * segment if it isn't in memory.
+     */
+    public synchronized Details get(int id) {
+	if (id < 0 || id >= size) {
+	    return null;
+	}
+
+	Entry entry = (Entry)cache.get(new Integer(id));
+	if (entry != null) {
+	    return entry.details;
+	}
+
+	Details details = null;
+	if (segment != null && lengths[id] > 0) {
+	    try {
+		byte[] data = new byte[lengths[id]];
+		segment.seek(offsets[id]);
+		segment.readFully(data);
+		details = decode(data);
+	    } catch (IOException ex) {
+		ex.printStackTrace();
+	    }
+	    put(id, details, lengths[id]);
+	}
+	return details;
+    }
+
+    /**
+     * Ensures that the records are in memory. The records which aren't
+     * in memory are read in the order that they appear in the segment.
+     */
+    public synchronized void prefetch(int[] ids) {
+	if (segment == null) {
+	    return;
+	}
+
+	int[] missing = new int[ids.length];
+	int count = 0;
+	for (int i = 0; i < ids.length; i++) {
+	    int id = ids[i];
+	    if (id >= 0 && id < size && !cache.containsKey(new Integer(id))) {
+		missing[count++] = id;
+	    }
+	}
+	// Records are appended so the segment is in id order
+	Arrays.sort(missing, 0, count);
+	for (int i = 0; i < count; i++) {
+	    get(missing[i]);
+	}
+    }
+
+    /**
+     * Deletes the segment file.
+     */
+    public synchronized void dispose() {
+	clear();
+	closeSegment();
+    }
+
+    private void put(int id, Details details, int length) {
+	if (!spill || segment == null) {
+	    // Nothing to reload the record from so it must stay in memory
+	    cache.put(new Integer(id), new Entry(details, 0));
+	    return;
+	}
+
+	cache.put(new Integer(id), new Entry(details, length));
+	cacheSize += length;
+
+	// Evict the least recently used records
+	Iterator iter = cache.values().iterator();
+	while (cacheSize > budget && iter.hasNext()) {
+	    Entry entry = (Entry)iter.next();
+	    if (entry.details == details) {
+		break;
+	    }
+	    cacheSize -= entry.length;
+	    iter.remove();
+	}
+    }
+
+    private boolean openSegment() {
+	if (!spill) {
+	    return false;
+	}
+	if (segment == null) {
+	    try {
+		segmentFile = File.createTempFile("jamazon", ".seg");
+		segmentFile.deleteOnExit();
+		segment = new RandomAccessFile(segmentFile, "rw");
+	    } catch (Exception ex) {
+		// May be running in a sandbox. Keep everything in memory
+		ex.printStackTrace();
+		spill = false;
+	    }
+	}
+	return segment != null;
+    }
+
+    private void closeSegment() {
+	if (segment != null) {
+	    try {
+		segment.close();
+	    } catch (IOException ex) {
+		// drop through
+	    }
+	    segmentFile.delete();
+	    segment = null;
+	}
+	spill = false;
+    }
+
+    //  Record encoding.
+
+    private static byte[] encode(Details details) throws IOException {
+	ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+	DataOutputStream out = new DataOutputStream(bytes);
+	writeDetails(out, details);
+	out.flush();
+	return bytes.toByteArray();
+    }
+
+    private static Details decode(byte[] data) throws IOException {
+	DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+	return share(readDetails(in));
+    }
+
+    /**
+     * Writes the fields of the details which are used by the client. Only
+     * strings are written, so the form is also safe to read from another
+     * process.
+     */
+    static void writeDetails(DataOutputStream out, Details details) throws IOException {
+	writeString(out, details.getUrl());
+	writeString(out, details.getAsin());
+	writeString(out, details.getProductName());
+	writeStrings(out, details.getAuthors());
+	writeString(out, details.getReleaseDate());
+	writeString(out, details.getManufacturer());
+	writeString(out, details.getImageUrlSmall());
+	writeString(out, details.getImageUrlMedium());
+	writeString(out, details.getListPrice());
+	writeString(out, details.getOurPrice());
+	writeString(out, details.getSalesRank());
+	writeString(out, details.getIsbn());
+
+	Reviews reviews = details.getReviews();
+	out.writeBoolean(reviews != null);
+	if (reviews != null) {
+	    writeString(out, reviews.getAvgCustomerRating());
+	    writeString(out, reviews.getTotalCustomerReviews());
+
+	    CustomerReview[] crevs = reviews.getCustomerReviews();
+	    out.writeInt(crevs == null ? -1 : crevs.length);
+	    for (int i = 0; crevs != null && i < crevs.length; i++) {
+		writeString(out, crevs[i].getRating());
+		writeString(out, crevs[i].getSummary());
+		writeString(out, crevs[i].getComment());
+	    }
+	}
+    }
+
+    static Details readDetails(DataInputStream in) throws IOException {
+	Details details = new Details();
+
+	details.setUrl(readString(in));
+	details.setAsin(readString(in));
+	details.setProductName(readString(in));
+	details.setAuthors(readStrings(in));
+	details.setReleaseDate(readString(in));
+	details.setManufacturer(readString(in));
+	details.setImageUrlSmall(readString(in));
+	details.setImageUrlMedium(readString(in));
+	details.setListPrice(readString(in));
+	details.setOurPrice(readString(in));
+	details.setSalesRank(readString(in));
+	details.setIsbn(readString(in));
+
+	if (in.readBoolean()) {
+	    Reviews reviews = new Reviews();
+	    reviews.setAvgCustomerRating(readString(in));
+	    reviews.setTotalCustomerReviews(readString(in));
+
+	    int count = in.readInt();
+	    if (count >= 0) {
+		CustomerReview[] crevs = new CustomerReview[count];
+		for (int i = 0; i < count; i++) {
+		    crevs[i] = new CustomerReview();
+		    crevs[i].setRating(readString(in));
+		    crevs[i].setSummary(readString(in));
+		    crevs[i].setComment(readString(in));
+		}
+		reviews.setCustomerReviews(crevs);
+	    }
+	    details.setReviews(reviews);
+	}
+	return details;
+    }
+
+    /**
+     * Replaces the strings which repeat across many records with the
+     * copies in the StringPool.
+     */
+    private static Details share(Details details) {
+	details.setAuthors(StringPool.get(details.getAuthors()));
+	details.setManufacturer(StringPool.get(details.getManufacturer()));
+	details.setReleaseDate(StringPool.get(details.getReleaseDate()));
+	return details;
+    }
+
+    // Strings are written as the length of the UTF-8 bytes since writeUTF
+    // is limited to 64K. A length of -1 is a null string.
+    static void writeString(DataOutputStream out, String value) throws IOException {
+	if (value == null) {
+	    out.writeInt(-1);
+	} else {
+	    byte[] bytes = value.getBytes("UTF-8");
+	    out.writeInt(bytes.length);
+	    out.write(bytes);
+	}
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+	int length = in.readInt();
+	if (length < 0) {
+	    return null;
+	}
+	byte[] bytes = new byte[length];
+	in.readFully(bytes);
+	return new String(bytes, "UTF-8");
+    }
+
+    static void writeStrings(DataOutputStream out, String[] values) throws IOException {
+	out.writeInt(values == null ? -1 : values.length);
+	for (int i = 0; values != null && i < values.length; i++) {
+	    writeString(out, values[i]);
+	}
+    }
+
+    static String[] readStrings(DataInputStream in) throws IOException {
+	int length = in.readInt();
+	if (length < 0) {
+	    return null;
+	}
+	String[] values = new String[length];
+	for (int i = 0; i < length; i++) {
+	    values[i] = readString(in);
+	}
+	return values;
+    }
+
+    private static class Entry {
+	Details details;
+	int length;
+
+	Entry(Details details, int length) {
+	    this.details = details;
+	    this.length = length;
+	}
+    }
+}
@@ -12,11 +12,13 @@ package com.sun.jamazon;
 
 import java.awt.*;
 
+import java.awt.image.BufferedImage;
+
 import java.net.URL;
 import java.net.MalformedURLException; 
 
-import java.util.Arrays;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.List;
 
 import java.text.NumberFormat;
@@ -27,8 +29,6 @@ import javax.swing.*;
 import javax.swing.table.*;
 
 import myamazonclient.AmazonClientGenClient.Details;
-import myamazonclient.AmazonClientGenClient.Reviews;
-import myamazonclient.AmazonClientGenClient.CustomerReview;
 
 /**
  * A table model which encapsulates the details returned
@@ -40,10 +40,36 @@ public class DetailsTableModel extends SortableTableModel {
 
     private static final Float FLOAT_ZERO = new Float(0f);
 
-    private List details;
+    // A direct mapped cache of the prices in the price columns
+    private Float[] floats = new Float[1024];
+
+    // Load the details of the neighbouring rows with the selected row
+    private static final int WINDOW = 8;
+
+    // The ProductRow for each row. 
+    private List rows;
+
+    // Holds the complete details for the rows
+    private DetailsStore store = new DetailsStore();
+
+    // Finds the rows by ASIN. Used to drop duplicates.
+    private AsinIndex asins = new AsinIndex();
+    private int duplicates;
+
+    // Supports filtering the details without another search
+    private DetailsIndex index = new DetailsIndex();
+    private String[] filterWords;
+    private BitSet filterMatches;
+
+    // Counts and filters the details by price, rating, etc.
+    private DetailsFacets facets = new DetailsFacets();
+
+    // The rows of a search whose pages are fetched as they're displayed
+    private LazyResults lazy;
+    private static final String LOADING = "Loading...";
 
     public DetailsTableModel() {
-	details = null;
+	rows = null;
     }
 
     public DetailsTableModel(Details[] details) {
@@ -54,28 +80,198 @@ public class DetailsTableModel extends SortableTableModel {
 	if (details == null) {
 	    return;
 	}
-	
-	this.details = new ArrayList();
-	this.details.addAll(Arrays.asList(details)); 
+	if (lazy != null) {
+	    lazy.dispose();
+	    lazy = null;
+	}
+
+	store.clear();
+	asins.clear();
+	duplicates = 0;
+	index.clear();
+	boolean selected = facets.hasSelection();
+	facets.clear();
+	if (filterWords != null) {
+	    filterMatches = new BitSet();
+	}
+	rows = createRows(details);
 
 	// Required for the SortableTableModel
-	setRowElements(this.details);
+	setRowElements(rows);
 	
+	if (selected) {
+	    // The facet selection has been dropped
+	    setFiltering(filterWords != null);
+	} else {
+	    fireTableDataChanged();
+	}
+	facets.fireStateChanged();
+    }
+
+    /**
+     * Displays the results of a search whose pages are fetched as they're
+     * scrolled into view. The model has a row for every result but only
+     * the rows of the pages which have been fetched are in memory. The
+     * rows can't be sorted or filtered.
+     */
+    public void setLazyResults(LazyResults results) {
+	setDetails(new Details[0]);
+	lazy = results;
+	lazy.setModel(this);
 	fireTableDataChanged();
+	facets.fireStateChanged();
+    }
+
+    /**
+     * Returns true if the rows are fetched as they're displayed.
+     */
+    public boolean isLazy() {
+	return lazy != null;
     }
 
+    /**
+     * Adds another page of details to the model. If the table has been
+     * sorted then the new details will be merged into the sort order.
+     */
     public void addDetails(Details[] newDetails) {
 	if (newDetails == null) {
 	    return;
 	}
+	if (rows == null) {
+	    setDetails(newDetails);
+	    return;
+	}
 
-	int firstRow = details.size();
-	
-	for (int i = 0; i < newDetails.length; i++) {
-	    details.add(newDetails[i]);
+	addRowElements(createRows(newDetails));
+	facets.fireStateChanged();
+    }
+
+    /**
+     * Moves the details into the store and the indexes and creates the
+     * rows which are kept in memory. Details for products which are 
+     * already in the model are dropped.
+     */
+    private List createRows(Details[] details) {
+	List newRows = new ArrayList(details.length);
+	for (int i = 0; i < details.length; i++) {
+	    if (details[i] == null) {
+		continue;
+	    }
+	    // Pages often repeat products. Keep the first one.
+	    if (asins.putIfAbsent(details[i].getAsin(), store.size()) != -1) {
+		duplicates++;
+		continue;
+	    }
+	    // The store and the indexes assign the same ids
+	    int id = store.add(details[i]);
+	    index.add(details[i]);
+	    if (filterWords != null && DetailsIndex.matches(details[i], filterWords)) {
+		filterMatches.set(id);
+	    }
+	    ProductRow row = new ProductRow(id, details[i]);
+	    facets.add(id, details[i], row);
+	    newRows.add(row);
+	}
+	return newRows;
+    }
+
+    /**
+     * Only show the details whose product name, authors or manufacturer
+     * contain words which start with each of the words in the filter. 
+     * The details are filtered using an index so this is fast enough to
+     * call as the filter is typed.
+     *
+     * @param filter the words to filter by; null or empty to show all the
+     *        details
+     */
+    public void setFilter(String filter) {
+	String[] words = DetailsIndex.tokenize(filter);
+	if (words.length == 0) {
+	    if (filterWords != null) {
+		filterWords = null;
+		filterMatches = null;
+		setFiltering(facets.hasSelection());
+	    }
+	    return;
 	}
 
-	fireTableRowsInserted(firstRow, firstRow + newDetails.length);
+	filterWords = words;
+	filterMatches = index.search(filter);
+	setFiltering(true);
+    }
+
+    /**
+     * Returns the row which displays the product with the ASIN.
+     *
+     * @return the row or -1 if the product isn't in the model or
+     *         is filtered out
+     */
+    public int findRowByAsin(String asin) {
+	if (lazy != null) {
+	    return lazy.findRow(asin);
+	}
+	return getRowForElement(asins.get(asin));
+    }
+
+    /**
+     * Returns the ASIN of the product in the row.
+     */
+    public String getAsin(int row) {
+	ProductRow productRow = peekRow(row);
+	return (productRow != null ? productRow.getAsin() : null);
+    }
+
+    /**
+     * Returns the number of details which have been dropped because
+     * their product was already in the model.
+     */
+    public int getDuplicateCount() {
+	return duplicates;
+    }
+
+    /**
+     * Returns the facet counts of the details. 
+     */
+    public DetailsFacets getFacets() {
+	return facets;
+    }
+
+    /**
+     * Only show the details which have one of the values of a facet. This
+     * is combined with the filter and the selections of the other facets.
+     *
+     * @param facet one of the facets of <code>DetailsFacets</code>
+     * @param labels the labels of the values to show; null or empty to
+     *        show all the values of the facet
+     */
+    public void setFacetSelection(int facet, String[] labels) {
+	facets.setSelection(facet, labels);
+	setFiltering(filterWords != null || facets.hasSelection());
+    }
+
+    /**
+     * Returns the words of the current filter separated by spaces or null
+     * if the details aren't filtered.
+     */
+    public String getFilter() {
+	if (filterWords == null) {
+	    return null;
+	}
+	StringBuffer buffer = new StringBuffer();
+	for (int i = 0; i < filterWords.length; i++) {
+	    if (i > 0) {
+		buffer.append(' ');
+	    }
+	    buffer.append(filterWords[i]);
+	}
+	return buffer.toString();
+    }
+
+    protected boolean acceptRowElement(int index) {
+	if (filterMatches != null && !filterMatches.get(index)) {
+	    return false;
+	}
+	return facets.accept(index);
     }
 
     /**
@@ -85,106 +281,115 @@ public class DetailsTableModel extends SortableTableModel {
 	return DetailsColumnModel.NUM_COLUMNS;
     }
 
-    public int getRowCount() {
-	return (details != null ? details.size() : 0);
-    }
-
     /**
      * Get text value for cell of table
      * @param row table row
      * @param col table column
      */
     public Object getValueAt(int row, int col) {
-	return getValueForColumn(getDetails(row), col);
+	Object element = getRowElement(row);
+	if (element == null && lazy != null && col == DetailsColumnModel.IDX_TITLE
+	    && lazy.isPending(row)) {
+	    return LOADING;
+	}
+	return getValueForColumn(element, col);
+    }
+
+    public int getRowCount() {
+	return (lazy != null ? lazy.getRowCount() : super.getRowCount());
+    }
+
+    /**
+     * Returns the row for painting. A lazy row whose page isn't in memory
+     * asks for the page to be fetched.
+     */
+    protected Object getRowElement(int row) {
+	return (lazy != null ? lazy.getRow(row) : super.getRowElement(row));
+    }
+
+    /**
+     * Returns the row without fetching its page. Used by everything except
+     * painting so that looking at all the rows doesn't fetch every page.
+     */
+    private ProductRow peekRow(int row) {
+	return (ProductRow)(lazy != null ? lazy.peekRow(row) : super.getRowElement(row));
+    }
+
+    /**
+     * The lazy rows aren't all in memory so they can't be sorted.
+     */
+    void sortByColumn(int column, boolean ascending) {
+	if (lazy == null) {
+	    super.sortByColumn(column, ascending);
+	}
     }
 
     /**
      * Overridden to sorting of the rows of details.
      */
     public Object getValueForColumn(Object obj, int column) {
-	if (obj instanceof Details) {
-	    Details details = (Details)obj;
+	if (obj instanceof ProductRow) {
+	    ProductRow row = (ProductRow)obj;
 
 	    switch (column) {
 
 	    case DetailsColumnModel.IDX_TITLE:
-		return details.getProductName();
+		return row.getTitle();
 
 	    case DetailsColumnModel.IDX_AUTHOR:
-		String author = "[ no author ]";
-		String[] authors = details.getAuthors();
-		if (authors != null) {
-		    author = authors[0];
-		    if (authors.length > 1) {
-			// multiple authors
-			author += ", et al";
-		    }
-		}
-		return author;
+		return row.getAuthor();
 
 	    case DetailsColumnModel.IDX_LIST_PRICE:
-		return getFloatFromPrice(details.getListPrice());
+		return getFloat(row.getListPrice());
 
 	    case DetailsColumnModel.IDX_AMAZ_PRICE:
-		return getFloatFromPrice(details.getOurPrice());
+		return getFloat(row.getOurPrice());
 
 	    case DetailsColumnModel.IDX_RATING:
-		Reviews reviews = details.getReviews();
-		return (reviews == null ? "" : reviews.getAvgCustomerRating());
+		return row.getRating();
 	    }
 	}
 	return null;
     }
 
-    public float getPrice(int row) {
-	Float f = (Float)getValueAt(row, DetailsColumnModel.IDX_AMAZ_PRICE);
-	if (f != null) {
-	    return f.floatValue();
+    /**
+     * Returns a Float for the price. The prices repeat on many rows so the
+     * Floats are cached rather than created for every cell which is painted
+     * or compared. The cache may be used by the sorting thread as well as
+     * the event dispatch thread but Floats are immutable so it doesn't
+     * matter if an entry is replaced by the other thread.
+     */
+    private Float getFloat(float price) {
+	int bits = Float.floatToIntBits(price);
+	int i = (bits ^ (bits >>> 16)) & (floats.length - 1);
+	Float value = floats[i];
+	if (value == null || Float.floatToIntBits(value.floatValue()) != bits) {
+	    value = new Float(price);
+	    floats[i] = value;
 	}
-	return 0f;
+	return value;
+    }
+
+    public float getPrice(int row) {
+	ProductRow productRow = peekRow(row);
+	return (productRow != null ? productRow.getOurPrice() : 0f);
     }
 
     /**
-     * Create a page with the product details
-     * TODO: hand coding html in Java is tedious and unmainatinable. Should
-     * probably use a template and define tags which can be replaced.
+     * Create a page with the product details and all of the reviews.
+     *
+     * @see DetailPages
      */
     public String getProductDetails(int row) {
-	Details details = getDetails(row);
-	if (details == null) {
-	    return "<html><body><i>No product details</i></body></html>";
-	}
-
-	// Html header
-	StringBuffer buffer = new StringBuffer("<html><head></head><body>");
-	
-	buffer.append("<table><tr><td><img src=\"").append(details.getImageUrlMedium());
-	buffer.append("\"></td><td style=\"vertical-align: top;\"");
-	buffer.append("<h2>").append(details.getProductName()).append("</h2>");
-	buffer.append("<p><b>Publisher: </b>").append(details.getManufacturer());
-	buffer.append("; (").append(details.getReleaseDate());
-	buffer.append(")<br><b>ISBN: </b>").append(details.getIsbn());
-	buffer.append("<br><b>Sales Rank: </b>").append(details.getSalesRank());
-	buffer.append("</td></tr></table>");
-	
-	Reviews reviews = details.getReviews();
-	if (reviews != null) {
-	    buffer.append("<b>Average Customer Review: </b>");
-	    buffer.append(reviews.getAvgCustomerRating());
-	    buffer.append(" Based on ").append(reviews.getTotalCustomerReviews());
-	    buffer.append(" reviews<p><hr>");
-	    
-	    CustomerReview[] crevs = reviews.getCustomerReviews();
-	    for (int i = 0; i < crevs.length; i++) {
-		CustomerReview rev = crevs[i];
-		buffer.append("<b>Rating: ").append(rev.getRating()).append(" ");
-		buffer.append(rev.getSummary()).append("</b><p>");
-		buffer.append(rev.getComment()).append("<p>");
-	    }
-	}
-	buffer.append("</body></html>");
+	return DetailPages.createPage(getDetails(row), Integer.MAX_VALUE, null);
+    }
 
-	return buffer.toString();
+    /**
+     * Returns the location of the small image of the product.
+     */
+    public String getImageUrl(int row) {
+	Details details = getDetails(row);
+	return (details != null ? details.getImageUrlSmall() : null);
     }
 
     public URL getProductURL(int row) {
@@ -200,14 +405,28 @@ public class DetailsTableModel extends SortableTableModel {
 	return url;
     }
 
-    private Details getDetails(int row) {
-	if (details == null) {
-	    return null;
+    /**
+     * Returns the complete details for the row from the store. The details
+     * for the rows around it are loaded at the same time.
+     */
+    public Details getDetails(int row) {
+	if (lazy != null) {
+	    return lazy.getDetails(row);
 	}
-	if (row > details.size()) {
+	ProductRow productRow = (ProductRow)getRowElement(row);
+	if (productRow == null) {
 	    return null;
 	}
-	return (Details)details.get(row);
+
+	int first = Math.max(row - WINDOW, 0);
+	int last = Math.min(row + WINDOW, getRowCount() - 1);
+	int[] ids = new int[last - first + 1];
+	for (int i = first; i <= last; i++) {
+	    ids[i - first] = ((ProductRow)getRowElement(i)).getId();
+	}
+	store.prefetch(ids);
+
+	return store.get(productRow.getId());
     }
 
     /**
@@ -281,7 +500,7 @@ public class DetailsTableModel extends SortableTableModel {
 	private final static String COL_LABEL_AMAZ_PRICE = "Amazon Price";
 	private final static String COL_LABEL_RATING = "Rating";
 
-	public static final int NUM_COLUMNS = 5;
+	public static final int NUM_COLUMNS = 6;
 
 	// Column indexes
 	public final static int IDX_TITLE = 0;
@@ -289,13 +508,26 @@ public class DetailsTableModel extends SortableTableModel {
 	public final static int IDX_LIST_PRICE = 2;
 	public final static int IDX_AMAZ_PRICE = 3;
 	public final static int IDX_RATING = 4;
+	public final static int IDX_IMAGE = 5;
 
 	private static final int SMALL_WIDTH = 100;
 	private static final int MED_WIDTH = 200;
 	private static final int LARGE_WIDTH = 400;
 
 	public DetailsColumnModel() {
+	    this(null);
+	}
+
+	/**
+	 * @param thumbnails loads the images for the thumbnail column or 
+	 *        null if the column shouldn't be shown
+	 */
+	public DetailsColumnModel(ThumbnailLoader thumbnails) {
 	    // Configure the columns and add them to the model
+	    if (thumbnails != null) {
+		addColumn(IDX_IMAGE, COL_LABEL_IMAGE, ThumbnailLoader.SIZE + 8,
+			  new ThumbnailRenderer(thumbnails));
+	    }
 	    addColumn(IDX_TITLE, COL_LABEL_TITLE, LARGE_WIDTH, null);
 	    addColumn(IDX_AUTHOR, COL_LABEL_AUTHOR, MED_WIDTH, null);
 	    addColumn(IDX_LIST_PRICE, COL_LABEL_LIST_PRICE, SMALL_WIDTH, new PriceRenderer());
@@ -312,23 +544,78 @@ public class DetailsTableModel extends SortableTableModel {
 	}
 
 	/**
-	 * A renderer which can correctly render prices
+	 * A renderer which can correctly render prices. The formatted prices
+	 * are cached so painting the cells doesn't create any objects.
 	 */ 
 	class PriceRenderer extends AmazonTableCellRenderer {
-	    protected void setValue(Object value) {
-		Float f = (Float)value;
-		NumberFormat nf = NumberFormat.getCurrencyInstance();
-		setText(nf.format(f.doubleValue()));
+
+	    private static final int CACHE_SIZE = 256;
+
+	    private NumberFormat nf = NumberFormat.getCurrencyInstance();
+
+	    // A direct mapped cache of the formatted prices
+	    private int[] prices = new int[CACHE_SIZE];
+	    private String[] texts = new String[CACHE_SIZE];
+
+	    public PriceRenderer() {
 		setHorizontalAlignment(SwingConstants.CENTER);
 	    }
+
+	    protected void setValue(Object value) {
+		if (value == null) {
+		    // A row which hasn't been fetched
+		    setText("");
+		    return;
+		}
+		float price = ((Float)value).floatValue();
+		int bits = Float.floatToIntBits(price);
+		int i = (bits ^ (bits >>> 16)) & (CACHE_SIZE - 1);
+		if (texts[i] == null || prices[i] != bits) {
+		    prices[i] = bits;
+		    texts[i] = nf.format(price);
+		}
+		setText(texts[i]);
+	    }
 	}
 	
 	/**
-	 * Renders the rating value as an ImageIcon of stars. 
+	 * Renders the small image of the product.
 	 */
-	class RatingRenderer extends AmazonTableCellRenderer {
+	class ThumbnailRenderer extends AmazonTableCellRenderer {
+
+	    private ThumbnailLoader thumbnails;
+	    private Image image;
+
+	    public ThumbnailRenderer(ThumbnailLoader thumbnails) {
+		this.thumbnails = thumbnails;
+	    }
+
+	    public Component getTableCellRendererComponent(JTable table, Object value,
+							   boolean isSelected, boolean hasFocus, 
+							   int row, int column) {
+		image = thumbnails.getThumbnail(row);
+		return super.getTableCellRendererComponent(table, value, 
+							   isSelected, hasFocus, 
+							   row, column);
+	    }
 
-	    private float mult;
+	    public void paintComponent(Graphics g) {
+		super.paintComponent(g);
+		if (image != null) {
+		    Dimension size = this.getSize();
+		    int x = (size.width - image.getWidth(null))/2;
+		    int y = (size.height - image.getHeight(null))/2;
+		    g.drawImage(image, x, y, this);
+		}
+	    }
+	}
+
+	/**
+	 * Renders the rating value as an ImageIcon of stars. There is an
+	 * image of the stars for each tenth of a star which is drawn when it's
+	 * first needed.
+	 */
+	class RatingRenderer extends AmazonTableCellRenderer {
 
 	    private Image img0;
 	    private Image img5;
@@ -336,6 +623,12 @@ public class DetailsTableModel extends SortableTableModel {
 	    private int width;
 	    private int height;
 
+	    // The stars for each rating in tenths and the screen they were
+	    // made for
+	    private Image[] strips = new Image[51];
+	    private GraphicsConfiguration stripsConfig;
+	    private int rating;
+
 	    public RatingRenderer() {
 		img0 = JAmazon.getImage("resources/stars-0-0.png", this);
 		img5 = JAmazon.getImage("resources/stars-5-0.png", this);
@@ -344,36 +637,54 @@ public class DetailsTableModel extends SortableTableModel {
 	    }
 
 	    protected void setValue(Object value) {
-		setToolTipText((String)value);
-
-		// Calculate multiple;
-		try {
-		    float fval  = (new Float((String)value)).floatValue();
-		    mult = fval/5f;
-		} catch (NumberFormatException ex) {
-		    mult = 0f;
-		    super.setValue(value);
+		String text = (String)value;
+		setToolTipText(text);
+		rating = (text != null ? getTenths(text) : -1);
+	    }
+
+	    /**
+	     * Parses a rating such as "4.5" into tenths. The ratings have
+	     * already been checked by the ProductRow.
+	     */
+	    private int getTenths(String text) {
+		if (text == null || text.length() != 3) {
+		    return 0;
+		}
+		return (text.charAt(0) - '0') * 10 + (text.charAt(2) - '0');
+	    }
+
+	    private Image getStrip(int tenths) {
+		GraphicsConfiguration gc = getGraphicsConfiguration();
+		if (gc != stripsConfig) {
+		    // Moved to another screen
+		    strips = new Image[strips.length];
+		    stripsConfig = gc;
 		}
+		Image strip = strips[tenths];
+		if (strip == null) {
+		    BufferedImage stars = new BufferedImage(width, height,
+							    BufferedImage.TYPE_INT_ARGB);
+		    int w2 = width * tenths / 50;
+		    Graphics g = stars.getGraphics();
+		    g.drawImage(img0, 0, 0, null);
+		    g.drawImage(img5, 0, 0, w2, height, 0, 0, w2, height, null);
+		    g.dispose();
+		    strip = JAmazon.createCompatibleImage(stars, gc);
+		    strips[tenths] = strip;
+		}
+		return strip;
 	    }
 
 	    public void paintComponent(Graphics g) {
 		super.paintComponent(g);
 
-		int w2 = (int)(width * mult);
-
-		// Calculate the starting position based on the alignment
-		int x = 0;
-		int y = 0;
-
 		// TODO: default is center, use the alignment attributes.
-		Dimension size = this.getSize();
-		x = (int)((size.width - width)/2);
-		y = (int)((size.height - height)/2);
-
-		g.translate(x, y);
-		g.drawImage(img0, 0, 0, this);
-		g.drawImage(img5, 0, 0, w2, height, 0, 0, w2, height, this);
-		g.translate(-x, -y);
+		int x = (getWidth() - width)/2;
+		int y = (getHeight() - height)/2;
+
+		if (rating >= 0) {
+		    g.drawImage(getStrip(rating), x, y, this);
+		}
 	    }
 	    
 	}
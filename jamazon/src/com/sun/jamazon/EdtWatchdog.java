@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2018 Oracle and/or its affiliates. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Distribution License v. 1.0, which is available at
+ * http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+
+package com.sun.jamazon;
+
+import java.awt.AWTEvent;
+import java.awt.EventQueue;
+import java.awt.Toolkit;
+
+import java.awt.event.InvocationEvent;
+
+import java.lang.reflect.Method;
+
+/**
+ * Detects stalls of the event dispatch thread. The watchdog replaces the
+ * system event queue and records when each event starts to be dispatched.
+ * A monitor thread checks the time regularly and if an event has been
+ * running for longer than the threshold, the stack of the event dispatch
+ * thread is written to System.err so the code which blocked it can be
+ * found.
+ * <p>
+ * The watchdog is installed when the <code>jamazon.watchdog</code> system
+ * property is true. The threshold is set with
+ * <code>jamazon.watchdog.threshold</code> (in milliseconds). The stalls are
+ * counted in the <code>edt.*</code> metrics.
+ * <p>
+ * The stack is captured with Thread.getStackTrace when the VM has it
+ * (J2SE 5.0 and later). On 1.4 only the event is reported.
+ */
+public class EdtWatchdog extends EventQueue {
+
+    private static final int DEFAULT_THRESHOLD = 250;
+
+    private int threshold;
+
+    // The event being dispatched and when it started. Written by the
+    // event dispatch thread and read by the monitor.
+    private volatile AWTEvent event;
+    private volatile long start;
+    private volatile Thread dispatchThread;
+
+    // The start time of the event which has already been reported
+    private long reported;
+
+    private EdtWatchdog(int threshold) {
+	this.threshold = threshold;
+    }
+
+    /**
+     * Installs the watchdog if it has been enabled with the system property.
+     */
+    public static void install() {
+	if (Boolean.getBoolean("jamazon.watchdog")) {
+	    install(Integer.getInteger("jamazon.watchdog.threshold", 
+				       DEFAULT_THRESHOLD).intValue());
+	}
+    }
+
+    /**
+     * Installs a watchdog which reports events which take longer than the
+     * threshold.
+     */
+    public static void install(int threshold) {
+	final EdtWatchdog watchdog = new EdtWatchdog(threshold);
+	Toolkit.getDefaultToolkit().getSystemEventQueue().push(watchdog);
+
+	Thread monitor = new Thread(new Runnable() {
+		public void run() {
+		    watchdog.monitor();
+		}
+	    }, "JAmazon EDT watchdog");
+	monitor.setDaemon(true);
+	monitor.start();
+    }
+
+    protected void dispatchEvent(AWTEvent evt) {
+	dispatchThread = Thread.currentThread();
+	// Events may be dispatched from within an event by a modal dialog
+	AWTEvent outerEvent = event;
+	long outerStart = start;
+
+	event = evt;
+	start = System.currentTimeMillis();
+	try {
+	    super.dispatchEvent(evt);
+	} finally {
+	    long time = System.currentTimeMillis() - start;
+	    Metrics.increment("edt.events");
+	    Metrics.max("edt.maxEventTime", time);
+	    if (time > threshold) {
+		Metrics.increment("edt.stalls");
+		Metrics.add("edt.stallTime", time);
+	    }
+	    event = outerEvent;
+	    start = outerStart;
+	}
+    }
+
+    private void monitor() {
+	while (true) {
+	    try {
+		Thread.sleep(Math.max(threshold / 4, 10));
+	    } catch (InterruptedException ex) {
+		// drop through
+	    }
+
+	    long started = start;
+	    AWTEvent current = event;
+	    if (current != null && started != reported && 
+		System.currentTimeMillis() - started > threshold) {
+		reported = started;
+		report(current, started);
+	    }
+	}
+    }
+
+    private void report(AWTEvent current, long started) {
+	StringBuffer buffer = new StringBuffer();
+	buffer.append("Event dispatch thread blocked for more than ");
+	buffer.append(threshold).append("ms by ").append(describe(current));
+	buffer.append('\n');
+
+	Object[] stack = getStackTrace(dispatchThread);
+	if (stack != null) {
+	    for (int i = 0; i < stack.length; i++) {
+		buffer.append("\tat ").append(stack[i]).append('\n');
+	    }
+	}
+	String text = buffer.toString();
+
+	System.err.print(text);
+	Metrics.set("edt.lastStall", text);
+    }
+
+    private static String describe(AWTEvent current) {
+	if (current instanceof InvocationEvent) {
+	    // The string includes the Runnable
+	    return current.paramString();
+	}
+	return current.getClass().getName() + "[" + current.paramString() + "] on " + 
+	    current.getSource().getClass().getName();
+    }
+
+    /**
+     * Calls Thread.getStackTrace if it's available.
+     */
+    private static Object[] getStackTrace(Thread thread) {
+	if (thread == null) {
+	    return null;
+	}
+	try {
+	    Method method = Thread.class.getMethod("getStackTrace", null);
+	    return (Object[])method.invoke(thread, null);
+	} catch (Exception ex) {
+	    // Not supported by the VM
+	    return null;
+	}
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2018 Oracle and/or its affiliates. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Distribution License v. 1.0, which is available at
+ * http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+
+package com.sun.jamazon;
+
+import java.awt.Dimension;
+import java.awt.GridLayout;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.swing.BorderFactory;
+import javax.swing.DefaultListModel;
+import javax.swing.JList;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+import javax.swing.event.ListSelectionEvent;
+import javax.swing.event.ListSelectionListener;
+
+/**
+ * Displays the facet counts of a <code>DetailsTableModel</code> as a list for
+ * each facet. The lists are refreshed as each page of results arrives.
+ * Selecting values in a list filters the table to the rows with those values.
+ *
+ * @see DetailsFacets
+ */
+public class FacetPanel extends JPanel {
+
+    private DetailsTableModel model;
+
+    private JList[] lists = new JList[DetailsFacets.NUM_FACETS];
+
+    // Set while the lists are being refreshed from the counts
+    private boolean refreshing;
+
+    public FacetPanel(DetailsTableModel model) {
+	this.model = model;
+
+	setLayout(new GridLayout(DetailsFacets.NUM_FACETS, 1));
+	setBackground(JAmazon.amazonYellow);
+	setPreferredSize(new Dimension(170, 200));
+
+	for (int i = 0; i < DetailsFacets.NUM_FACETS; i++) {
+	    final int facet = i;
+
+	    lists[i] = new JList(new DefaultListModel());
+	    lists[i].addListSelectionListener(new ListSelectionListener() {
+		    public void valueChanged(ListSelectionEvent evt) {
+			if (!refreshing && !evt.getValueIsAdjusting()) {
+			    selectionChanged(facet);
+			}
+		    }
+		});
+
+	    JScrollPane sp = new JScrollPane(lists[i]);
+	    sp.setBorder(BorderFactory.createTitledBorder(DetailsFacets.FACET_NAMES[i]));
+	    sp.setBackground(JAmazon.amazonYellow);
+	    add(sp);
+	}
+
+	model.getFacets().addChangeListener(new ChangeListener() {
+		public void stateChanged(ChangeEvent evt) {
+		    refresh();
+		}
+	    });
+    }
+
+    private void selectionChanged(int facet) {
+	Object[] selected = lists[facet].getSelectedValues();
+	String[] labels = new String[selected.length];
+	for (int i = 0; i < selected.length; i++) {
+	    labels[i] = ((DetailsFacets.Value)selected[i]).getLabel();
+	}
+	model.setFacetSelection(facet, labels);
+    }
+
+    /**
+     * Replaces the contents of the lists with the current counts and
+     * selects the values which are selected in the facets. The facets
+     * drop their selection for a new search.
+     */
+    private void refresh() {
+	DetailsFacets facets = model.getFacets();
+
+	refreshing = true;
+	try {
+	    for (int i = 0; i < DetailsFacets.NUM_FACETS; i++) {
+		Set selectedLabels = new HashSet();
+		String[] selected = facets.getSelection(i);
+		for (int j = 0; selected != null && j < selected.length; j++) {
+		    selectedLabels.add(selected[j]);
+		}
+
+		// A new list model is filled so that the list is only
+		// notified once
+		DetailsFacets.Value[] values = facets.getValues(i);
+		DefaultListModel listModel = new DefaultListModel();
+		List indexes = new ArrayList();
+		for (int j = 0; j < values.length; j++) {
+		    listModel.addElement(values[j]);
+		    if (selectedLabels.contains(values[j].getLabel())) {
+			indexes.add(new Integer(j));
+		    }
+		}
+		lists[i].setModel(listModel);
+
+		int[] indices = new int[indexes.size()];
+		for (int j = 0; j < indices.length; j++) {
+		    indices[j] = ((Integer)indexes.get(j)).intValue();
+		}
+		lists[i].setSelectedIndices(indices);
+	    }
+	} finally {
+	    refreshing = false;
+	}
+    }
+}
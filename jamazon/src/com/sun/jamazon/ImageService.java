@@ -0,0 +1,423 @@
+/*
+ * Copyright (c) 2018 Oracle and/or its affiliates. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Distribution License v. 1.0, which is available at
+ * http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+
+package com.sun.jamazon;
+
+import java.awt.Graphics2D;
+import java.awt.Image;
+import java.awt.RenderingHints;
+
+import java.awt.image.BufferedImage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.lang.ref.SoftReference;
+
+import java.net.URL;
+import java.net.URLConnection;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+import javax.imageio.ImageIO;
+
+import javax.swing.SwingUtilities;
+
+/**
+ * Loads the product images. The images are downloaded by a small pool of
+ * threads, which is set with the <code>jamazon.images.threads</code>
+ * system property, and are decoded and scaled on the same threads. The
+ * listener is notified on the event dispatch thread.
+ * <p>
+ * The decoded images are kept in a memory cache which is limited to
+ * <code>jamazon.images.budget</code> bytes of pixels. The images are held
+ * by soft references so that they can also be collected when memory is
+ * short. The downloaded files are kept in a disk cache in the
+ * <code>jamazon.images.dir</code> directory so they're only downloaded
+ * once.
+ */
+public class ImageService {
+
+    private static final int DEFAULT_THREADS = 4;
+    private static final int DEFAULT_BUDGET = 4 * 1024 * 1024;
+
+    // The connect and read timeouts in milliseconds, so a server which
+    // doesn't answer can't hold a thread of the pool
+    private static final int TIMEOUT = 15 * 1000;
+
+    /**
+     * Notified on the event dispatch thread when an image has been loaded.
+     */
+    public interface Listener {
+	/**
+	 * @param image the image or null if it couldn't be loaded
+	 */
+	public void imageLoaded(Request request, Image image);
+    }
+
+    private int budget;
+
+    // key -> Entry in access order
+    private Map cache = new LinkedHashMap(64, 0.75f, true);
+    private int cacheSize;
+
+    private File cacheDir;
+
+    // Requests which haven't been started
+    private LinkedList queue = new LinkedList();
+
+    public ImageService() {
+	this(Integer.getInteger("jamazon.images.threads", DEFAULT_THREADS).intValue(),
+	     Integer.getInteger("jamazon.images.budget", DEFAULT_BUDGET).intValue(),
+	     new File(System.getProperty("jamazon.images.dir",
+					 System.getProperty("java.io.tmpdir") +
+					 File.separator + "jamazon-images")));
+    }
+
+    /**
+     * @param threads the number of images which may be downloaded at once
+     * @param budget the approximate number of bytes of decoded images to
+     *        keep in memory
+     * @param cacheDir the directory for the downloaded files or null if
+     *        they shouldn't be kept
+     */
+    public ImageService(int threads, int budget, File cacheDir) {
+	this.budget = budget;
+	if (cacheDir != null && (cacheDir.isDirectory() || cacheDir.mkdirs())) {
+	    this.cacheDir = cacheDir;
+	}
+
+	for (int i = 0; i < threads; i++) {
+	    Thread thread = new Thread(new Runnable() {
+		    public void run() {
+			while (true) {
+			    load(nextRequest());
+			}
+		    }
+		}, "JAmazon images " + i);
+	    thread.setDaemon(true);
+	    thread.setPriority(Thread.NORM_PRIORITY - 1);
+	    thread.start();
+	}
+    }
+
+    /**
+     * Returns the image if it's in the memory cache.
+     *
+     * @param maxWidth the image is scaled down to this width or 0 to keep
+     *        the original size
+     * @param maxHeight the image is scaled down to this height or 0
+     */
+    public synchronized Image getCachedImage(String url, int maxWidth, int maxHeight) {
+	String key = getKey(url, maxWidth, maxHeight);
+	Entry entry = (Entry)cache.get(key);
+	if (entry == null) {
+	    return null;
+	}
+	Image image = (Image)entry.image.get();
+	if (image == null) {
+	    // Collected
+	    cache.remove(key);
+	    cacheSize -= entry.size;
+	}
+	return image;
+    }
+
+    /**
+     * Loads the image. If it's in the memory cache, the listener is
+     * notified before this returns.
+     *
+     * @param url the location of the image
+     * @param maxWidth the image is scaled down to this width or 0 to keep
+     *        the original size
+     * @param maxHeight the image is scaled down to this height or 0
+     * @return the request which may be used to cancel the load
+     */
+    public Request load(String url, int maxWidth, int maxHeight, Listener listener) {
+	Request request = new Request(url, maxWidth, maxHeight, listener);
+	if (url == null) {
+	    request.loaded(null);
+	    return request;
+	}
+
+	Image image = getCachedImage(url, maxWidth, maxHeight);
+	if (image != null) {
+	    request.loaded(image);
+	} else {
+	    synchronized (this) {
+		queue.addLast(request);
+		notify();
+	    }
+	}
+	return request;
+    }
+
+    private synchronized Request nextRequest() {
+	while (true) {
+	    while (queue.isEmpty()) {
+		try {
+		    wait();
+		} catch (InterruptedException ex) {
+		    // drop through
+		}
+	    }
+	    Request request = (Request)queue.removeFirst();
+	    if (!request.isCancelled()) {
+		return request;
+	    }
+	}
+    }
+
+    private synchronized void cancel(Request request) {
+	queue.remove(request);
+    }
+
+    /**
+     * Called on one of the pool threads to load the image.
+     */
+    private void load(final Request request) {
+	Image image = getCachedImage(request.url, request.maxWidth, request.maxHeight);
+	if (image == null) {
+	    try {
+		byte[] data = readImage(request);
+		if (data != null) {
+		    image = decode(data, request.maxWidth, request.maxHeight);
+		}
+		if (image != null) {
+		    put(getKey(request.url, request.maxWidth, request.maxHeight), image);
+		}
+	    } catch (IOException ex) {
+		System.err.println("Unable to load image " + request.url + ": " + ex);
+	    } catch (Throwable ex) {
+		// A corrupt or huge image mustn't stop the thread, and the
+		// listener is still told that it failed
+		System.err.println("Unable to decode image " + request.url + ": " + ex);
+		image = null;
+	    }
+	}
+
+	final Image loaded = image;
+	SwingUtilities.invokeLater(new Runnable() {
+		public void run() {
+		    if (!request.isCancelled()) {
+			request.loaded(loaded);
+		    }
+		}
+	    });
+    }
+
+    private synchronized void put(String key, Image image) {
+	Entry old = (Entry)cache.remove(key);
+	if (old != null) {
+	    cacheSize -= old.size;
+	}
+
+	Entry entry = new Entry(image);
+	cache.put(key, entry);
+	cacheSize += entry.size;
+
+	// Drop the least recently used images
+	Iterator iter = cache.values().iterator();
+	while (cacheSize > budget && iter.hasNext()) {
+	    Entry eldest = (Entry)iter.next();
+	    if (eldest != entry) {
+		iter.remove();
+		cacheSize -= eldest.size;
+	    }
+	}
+    }
+
+    /**
+     * Reads the image file from the disk cache or downloads it.
+     *
+     * @return the file or null if the request was cancelled
+     */
+    private byte[] readImage(Request request) throws IOException {
+	File file = null;
+	if (cacheDir != null) {
+	    file = new File(cacheDir, getFileName(request.url));
+	    if (file.isFile()) {
+		InputStream in = new FileInputStream(file);
+		try {
+		    return readFully(in, request);
+		} finally {
+		    in.close();
+		}
+	    }
+	}
+
+	URLConnection connection = new URL(request.url).openConnection();
+	connection.setConnectTimeout(TIMEOUT);
+	connection.setReadTimeout(TIMEOUT);
+	InputStream in = connection.getInputStream();
+	byte[] data;
+	try {
+	    data = readFully(in, request);
+	} finally {
+	    in.close();
+	}
+
+	if (file != null && data != null) {
+	    // Write to a temporary file first so a partial file is never seen
+	    File temp = new File(cacheDir, file.getName() + ".tmp");
+	    try {
+		OutputStream out = new FileOutputStream(temp);
+		try {
+		    out.write(data);
+		} finally {
+		    out.close();
+		}
+		if (!temp.renameTo(file)) {
+		    temp.delete();
+		}
+	    } catch (IOException ex) {
+		temp.delete();
+	    }
+	}
+	return data;
+    }
+
+    private static byte[] readFully(InputStream in, Request request) throws IOException {
+	ByteArrayOutputStream out = new ByteArrayOutputStream(8192);
+	byte[] buffer = new byte[4096];
+	int count;
+	while ((count = in.read(buffer)) != -1) {
+	    if (request.isCancelled()) {
+		return null;
+	    }
+	    out.write(buffer, 0, count);
+	}
+	return out.toByteArray();
+    }
+
+    /**
+     * Decodes the image and scales it down to fit in the maximum size.
+     */
+    private static Image decode(byte[] data, int maxWidth, int maxHeight) throws IOException {
+	BufferedImage image = ImageIO.read(new ByteArrayInputStream(data));
+	if (image == null) {
+	    return null;
+	}
+
+	int width = image.getWidth();
+	int height = image.getHeight();
+	double scale = 1.0;
+	if (maxWidth > 0 && width > maxWidth) {
+	    scale = (double)maxWidth / width;
+	}
+	if (maxHeight > 0 && height * scale > maxHeight) {
+	    scale = (double)maxHeight / height;
+	}
+	if (scale == 1.0) {
+	    return image;
+	}
+
+	int scaledWidth = Math.max(1, (int)Math.round(width * scale));
+	int scaledHeight = Math.max(1, (int)Math.round(height * scale));
+	BufferedImage scaled = new BufferedImage(scaledWidth, scaledHeight,
+						 BufferedImage.TYPE_INT_RGB);
+	Graphics2D g = scaled.createGraphics();
+	g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+			   RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+	g.drawImage(image, 0, 0, scaledWidth, scaledHeight, null);
+	g.dispose();
+	return scaled;
+    }
+
+    private static String getKey(String url, int maxWidth, int maxHeight) {
+	return maxWidth + "x" + maxHeight + " " + url;
+    }
+
+    static String getFileName(String url) {
+	try {
+	    MessageDigest digest = MessageDigest.getInstance("MD5");
+	    byte[] hash = digest.digest(url.getBytes("UTF-8"));
+	    StringBuffer buffer = new StringBuffer(hash.length * 2);
+	    for (int i = 0; i < hash.length; i++) {
+		buffer.append(Character.forDigit((hash[i] >> 4) & 0xf, 16));
+		buffer.append(Character.forDigit(hash[i] & 0xf, 16));
+	    }
+	    return buffer.toString();
+	} catch (NoSuchAlgorithmException ex) {
+	    return Integer.toHexString(url.hashCode());
+	} catch (IOException ex) {
+	    return Integer.toHexString(url.hashCode());
+	}
+    }
+
+    /**
+     * A request to load an image.
+     */
+    public class Request {
+	private String url;
+	private int maxWidth;
+	private int maxHeight;
+	private Listener listener;
+	private volatile boolean cancelled;
+	private boolean done;
+
+	Request(String url, int maxWidth, int maxHeight, Listener listener) {
+	    this.url = url;
+	    this.maxWidth = maxWidth;
+	    this.maxHeight = maxHeight;
+	    this.listener = listener;
+	}
+
+	public String getUrl() {
+	    return url;
+	}
+
+	public boolean isCancelled() {
+	    return cancelled;
+	}
+
+	/**
+	 * Returns true if the listener has been notified.
+	 */
+	public boolean isDone() {
+	    return done;
+	}
+
+	void loaded(Image image) {
+	    done = true;
+	    listener.imageLoaded(this, image);
+	}
+
+	/**
+	 * Stops loading the image. The listener won't be notified.
+	 */
+	public void cancel() {
+	    cancelled = true;
+	    ImageService.this.cancel(this);
+	}
+    }
+
+    private static class Entry {
+	SoftReference image;
+	int size;
+
+	Entry(Image image) {
+	    this.image = new SoftReference(image);
+	    size = image.getWidth(null) * image.getHeight(null) * 4;
+	}
+    }
+}
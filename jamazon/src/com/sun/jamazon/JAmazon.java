@@ -14,14 +14,19 @@ import java.awt.*;
 
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
 
 import java.text.NumberFormat;
 
 import java.net.URL;
 
+import java.util.Collections;
 import java.util.Map;
 import java.util.HashMap;
 
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 import javax.swing.event.ListSelectionEvent;
 import javax.swing.event.ListSelectionListener;
 import javax.swing.event.TableModelEvent;
@@ -31,6 +36,8 @@ import javax.swing.*;
 
 import javax.swing.table.JTableHeader;
 
+import myamazonclient.AmazonClientGenClient.Details;
+
 /**
  * This class contains all the user interface code for the Amazon.com 
  * Java Desktop client for web services.
@@ -41,33 +48,42 @@ public class JAmazon extends JPanel {
 
     private AmazonProxy proxy;
     private DetailsTableModel model;
+    private PriceAggregates aggregates;
 
     // ui components
     private JTextField keywordField;
+    private JTextField filterField;
     private JComboBox modeCombo;
     private JTable table;
     private JLabel statusBar;
     private JEditorPane details;
+    private DetailPages pages;
+    private ImageService images;
+    private ThumbnailLoader thumbnails;
 
     public final static Color amazonYellow = new Color(238, 238, 205);
     public final static Color amazonBlue = new Color(0, 52, 98);
 
     private int currentRow = -1; // holds the last row. a bit of a hack
+    private String currentAsin; // the product in the last row
 
     private static String HTML_HEAD = "<html><body>";
     private static String HTML_FOOT = "</body></html>";
 
     private static String HTML_TITLE = "<center><h3>Java Desktop Client Example for Amazon Web Services</h3></center>";
-    private static String HTML_BODY = "<ul><li>Type search string, press enter or the Send button</li><li>Click on the column headings to sort <li>Select a row in the table to show details <li>Multiple row selection will show the Amazon price total</ul>";
+    private static String HTML_BODY = "<ul><li>Type search string. The results are shown as you type or press enter or the Send button</li><li>Click on the column headings to sort <li>Type in the filter field or select the values on the left to narrow the results <li>Select a row in the table to show details <li>Multiple row selection will show the Amazon price total</ul>";
 
     private static String INIT_TEXT = HTML_HEAD + HTML_TITLE + HTML_BODY + HTML_FOOT;
 
-    private static Map imageCache = new HashMap();
+    // The images and icons in the resources. The product images are
+    // loaded by the ImageService.
+    private static Map imageCache = Collections.synchronizedMap(new HashMap());
 
     public JAmazon() {
 	// Create the WS proxy and the model
 	proxy = new AmazonProxy();
 	model = new DetailsTableModel();
+	images = new ImageService();
 
 	initUI();
     }
@@ -81,8 +97,18 @@ public class JAmazon extends JPanel {
 	splitpane.setBottomComponent(createDetailPane());
 
 	add(splitpane, BorderLayout.CENTER);
+	add(new FacetPanel(model), BorderLayout.WEST);
 	add(createStatusBar(), BorderLayout.SOUTH);
 	decorateComponent(this);
+
+	// Ctrl+Shift+M shows the metrics
+	getInputMap(WHEN_IN_FOCUSED_WINDOW).put(KeyStroke.getKeyStroke("control shift M"),
+						 "showMetrics");
+	getActionMap().put("showMetrics", new AbstractAction() {
+		public void actionPerformed(ActionEvent evt) {
+		    MetricsPanel.showDialog(JAmazon.this);
+		}
+	    });
     }
 
     /**
@@ -96,6 +122,13 @@ public class JAmazon extends JPanel {
 	return keywordField.getText();
     }
 
+    /**
+     * Returns the selected product mode, one of AmazonProxy.MODE_KEYS.
+     */
+    public String getMode() {
+	return (String)modeCombo.getSelectedItem();
+    }
+
     private JComponent createStatusBar() {
 	statusBar = new JLabel();
 	decorateComponent(statusBar);
@@ -110,14 +143,43 @@ public class JAmazon extends JPanel {
     }
 
     private JComponent createResultsTable() {
-	table = new JTable(model, new DetailsTableModel.DetailsColumnModel());
+	thumbnails = new ThumbnailLoader(images);
+	table = new JTable(model, new DetailsTableModel.DetailsColumnModel(thumbnails));
+	table.setRowHeight(ThumbnailLoader.SIZE + 4);
 	table.setTableHeader(new SortableTableHeader(table.getColumnModel()));
+
+	// Must be created after the table. The model notifies the listeners
+	// which were added last first and the aggregates have to be invalid
+	// before the table adjusts the selection.
+	aggregates = new PriceAggregates(model);
 	model.addTableModelListener(new TableModelListener() {
 		public void tableChanged(TableModelEvent evt) {
 		    // Notification that the data has changed. reset
 		    if (evt.getType() == TableModelEvent.UPDATE) {
+			if (evt.getFirstRow() != TableModelEvent.HEADER_ROW &&
+			    evt.getLastRow() != Integer.MAX_VALUE) {
+			    // Only some rows have changed, such as a lazy page
+			    // arriving or being dropped. The selection stays.
+			    if (currentRow >= evt.getFirstRow() && 
+				currentRow <= evt.getLastRow()) {
+				rowUpdated();
+			    }
+			    return;
+			}
+			final String asin = currentAsin;
 			currentRow = -1;
-			details.setText(INIT_TEXT);
+			currentAsin = null;
+			pages.showText(INIT_TEXT);
+
+			// The rows may only have been sorted or filtered. The table
+			// clears the selection after this so restore it later.
+			if (asin != null) {
+			    SwingUtilities.invokeLater(new Runnable() {
+				    public void run() {
+					restoreSelection(asin);
+				    }
+				});
+			}
 		    }
 		}
 	    });
@@ -130,21 +192,33 @@ public class JAmazon extends JPanel {
 		    ListSelectionModel lsm = (ListSelectionModel)evt.getSource();
 		    if (!lsm.isSelectionEmpty()) {
 			int firstrow = lsm.getMinSelectionIndex();
-			int lastrow = lsm.getMaxSelectionIndex();
 
 			if (currentRow != firstrow) {
-			    details.setText(model.getProductDetails(firstrow));
-			    details.setCaretPosition(0);
+			    pages.show(model.getDetails(firstrow));
+			    // Get the pages ready for the arrow keys
+			    if (firstrow + 1 < model.getRowCount()) {
+				pages.prefetch(model.getDetails(firstrow + 1));
+			    }
+			    if (firstrow > 0) {
+				pages.prefetch(model.getDetails(firstrow - 1));
+			    }
 			    currentRow = firstrow;
+			    currentAsin = model.getAsin(firstrow);
 			}
 
-			// Compute the total price and send to the status bar
-			float price = 0.0f;
-			for (int i = firstrow; i <= lastrow; i++) {
-			    price += model.getPrice(i);
-			}
+			// Summarize the prices and send to the status bar
+			PriceAggregates.Totals totals = aggregates.getTotals(lsm);
 			NumberFormat nf = NumberFormat.getCurrencyInstance();
-			setStatusMessage("Total Amazon price of selected items: " + nf.format(price));
+			if (totals.getCount() == 1) {
+			    setStatusMessage("Total Amazon price of selected items: " + 
+					     nf.format(totals.getTotal()));
+			} else {
+			    setStatusMessage("Total Amazon price of " + totals.getCount() + 
+					     " selected items: " + nf.format(totals.getTotal()) +
+					     " (average " + nf.format(totals.getAverage()) +
+					     ", lowest " + nf.format(totals.getMinimum()) + 
+					     ", highest " + nf.format(totals.getMaximum()) + ")");
+			}
 		    }
 		}
 	    });
@@ -156,33 +230,79 @@ public class JAmazon extends JPanel {
 	JScrollPane sp = new JScrollPane();
 	final Image bgImage = getImage("resources/amazon.png", this);
 	JViewport vp = new JViewport() {
+		// A copy of the image in the format of the screen which
+		// can be drawn quickly, and the screen it was made for.
+		private Image background;
+		private GraphicsConfiguration backgroundConfig;
+
 		public void paintComponent(Graphics g) {
 		    super.paintComponent(g);
 
+		    // Made again if the window moves to another screen
+		    GraphicsConfiguration gc = getGraphicsConfiguration();
+		    if (background == null || gc != backgroundConfig) {
+			background = createCompatibleImage(bgImage, gc);
+			backgroundConfig = gc;
+		    }
+
 		    int width = this.getWidth();
 		    int height = this.getHeight();
-		    int imageW = bgImage.getWidth(null);
-		    int imageH = bgImage.getHeight(null);
+		    int imageW = background.getWidth(null);
+		    int imageH = background.getHeight(null);
 		    
 		    int x = (width - imageW)/2;
 		    int y = (height - imageH)/2;
 
-		    g.drawImage(bgImage, x, y, this);
+		    g.drawImage(background, x, y, this);
 		}
 	    };
 	vp.setBackground(Color.white);
 	vp.setView(table);
 	sp.setViewport(vp);
+	thumbnails.install(table);
 	sp.setPreferredSize(new Dimension(600, 200));
 
 	return sp;
     }
 
     
+    /**
+     * Called when the selected row has been updated. If the row was a
+     * placeholder when it was selected its details are shown now.
+     */
+    private void rowUpdated() {
+	if (currentAsin != null) {
+	    // The details which are shown are still right
+	    return;
+	}
+	Details rowDetails = model.getDetails(currentRow);
+	if (rowDetails != null) {
+	    pages.show(rowDetails);
+	    currentAsin = model.getAsin(currentRow);
+	}
+    }
+
+    /**
+     * Selects the row of the product with the ASIN if it's still in 
+     * the table.
+     */
+    private void restoreSelection(String asin) {
+	if (table.getSelectedRow() != -1) {
+	    // The user has already selected something else
+	    return;
+	}
+	int row = model.findRowByAsin(asin);
+	if (row != -1) {
+	    table.setRowSelectionInterval(row, row);
+	    table.scrollRectToVisible(table.getCellRect(row, 0, true));
+	}
+    }
+    
     private JComponent createDetailPane() {
 	details = new JEditorPane("text/html", INIT_TEXT);
 	details.setEditable(false);
 	details.setPreferredSize(new Dimension(600, 300));
+	pages = new DetailPages(details, images);
 	
 	return new JScrollPane(details);
     }
@@ -210,15 +330,51 @@ public class JAmazon extends JPanel {
 	decorateComponent(button);
 
 	panel.add(button);
+	panel.add(Box.createHorizontalStrut(PAD * 3));
+
+	// Filters the results which have already been retrieved
+	label = new JLabel("Filter: ");
+	decorateComponent(label);
 
-	ActionListener handler = new RequestHandler(proxy, model, this);
+	panel.add(label);
+	panel.add(Box.createHorizontalStrut(PAD));
+	panel.add(filterField = new JTextField(10));
+	filterField.getDocument().addDocumentListener(new DocumentListener() {
+		public void insertUpdate(DocumentEvent evt) {
+		    model.setFilter(filterField.getText());
+		}
+
+		public void removeUpdate(DocumentEvent evt) {
+		    model.setFilter(filterField.getText());
+		}
+
+		public void changedUpdate(DocumentEvent evt) {
+		}
+	    });
+
+	final RequestHandler handler = new RequestHandler(proxy, model, this);
 
 	keywordField.addActionListener(handler);
 	button.addActionListener(handler);
 
+	// Search as the keyword is typed
+	keywordField.getDocument().addDocumentListener(new DocumentListener() {
+		public void insertUpdate(DocumentEvent evt) {
+		    handler.keywordChanged();
+		}
+
+		public void removeUpdate(DocumentEvent evt) {
+		    handler.keywordChanged();
+		}
+
+		public void changedUpdate(DocumentEvent evt) {
+		}
+	    });
+
 	modeCombo.addActionListener(new ActionListener() {
 		public void actionPerformed(ActionEvent evt) {
 		    proxy.setMode((String)modeCombo.getSelectedItem());
+		    handler.keywordChanged();
 		}
 	    });
 	decorateComponent(modeCombo);
@@ -253,14 +409,57 @@ public class JAmazon extends JPanel {
 	return icon;
     }
 
+    /**
+     * Returns a copy of the image which is compatible with the screen or
+     * the image itself if there isn't a screen.
+     */
+    public static Image createCompatibleImage(Image image, GraphicsConfiguration gc) {
+	if (gc == null) {
+	    return image;
+	}
+	Image copy = gc.createCompatibleImage(image.getWidth(null), image.getHeight(null),
+					      Transparency.TRANSLUCENT);
+	Graphics g = copy.getGraphics();
+	g.drawImage(image, 0, 0, null);
+	g.dispose();
+	return copy;
+    }
+
     private void decorateComponent(JComponent comp) {
 	comp.setBackground(amazonYellow);
 	comp.setForeground(amazonBlue);
     }
 
     public static void main(String[] args) {
+	final long start = System.currentTimeMillis();
+
+	// The port takes the longest to create so start it first
+	AmazonProxy.startInit();
+	EdtWatchdog.install();
+
+	SwingUtilities.invokeLater(new Runnable() {
+		public void run() {
+		    createFrame(start);
+		}
+	    });
+    }
+
+    private static void createFrame(final long start) {
 	JFrame frame = new JFrame("JAmazon.com - web services");
 	frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+	frame.addWindowListener(new WindowAdapter() {
+		public void windowOpened(WindowEvent evt) {
+		    long time = System.currentTimeMillis() - start;
+		    Metrics.set("startup.window", time);
+		    if (Boolean.getBoolean("jamazon.startup.timing")) {
+			System.out.println("Window opened in " + time + "ms");
+		    }
+		    if (Boolean.getBoolean("jamazon.startup.exit")) {
+			// Used for the training run of the class data archive
+			System.exit(0);
+		    }
+		}
+	    });
 
 	frame.getContentPane().add(new JAmazon());
 	frame.pack();
@@ -0,0 +1,387 @@
+/*
+ * Copyright (c) 2018 Oracle and/or its affiliates. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Distribution License v. 1.0, which is available at
+ * http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+
+package com.sun.jamazon;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import javax.swing.Timer;
+
+import myamazonclient.AmazonClientGenClient.Details;
+
+/**
+ * The rows of a search whose pages are only fetched when they're
+ * displayed. The model has a row for every result from the start and the
+ * rows of the pages which haven't been fetched are shown as placeholders.
+ * <p>
+ * Painting a placeholder asks for its page and painting a row which has
+ * been fetched asks for the pages either side of it. The pages which have
+ * been asked for while painting are fetched a moment later, the pages
+ * with placeholders on the screen first. Pages which are still waiting
+ * for the quota when the table has been scrolled elsewhere are
+ * cancelled. Only
+ * <code>jamazon.lazy.pages</code> pages are kept and the pages which were
+ * displayed longest ago are dropped, so a long result list doesn't use
+ * up memory for rows which have been scrolled past.
+ * <p>
+ * All the methods must be called on the event dispatch thread.
+ *
+ * @see DetailsTableModel#setLazyResults
+ */
+public class LazyResults {
+
+    private static final int DEFAULT_PAGES = 30;
+
+    // Gather the pages asked for while painting before fetching them
+    private static final int DELAY = 50;
+
+    /**
+     * Fetches a page of the search. Called on a task thread.
+     */
+    public interface Loader {
+	/**
+	 * @param page the page number starting at 1
+	 * @param lane the RequestScheduler lane for the request
+	 * @return the details of the page or null if it couldn't be fetched
+	 */
+	public Details[] loadPage(int page, int lane) throws Exception;
+    }
+
+    private DetailsTableModel model;
+    private Loader loader;
+    private int rowCount;
+    private int pageSize;
+    private int maxPages;
+
+    // Integer page -> ProductRow[] with the page displayed longest ago
+    // first. Only painting moves a page to the end.
+    private Map pages = new LinkedHashMap();
+    // Integer page -> Details[] for the same pages
+    private Map details = new HashMap();
+
+    // Integer page -> Task for the pages being fetched
+    private Map loading = new HashMap();
+    // Integer page -> Long time the page was last asked for since the
+    // last fetch
+    private Map wanted = new HashMap();
+    // Integer page -> Long time for the pages next to the pages displayed
+    private Map nearby = new HashMap();
+    // Integers of the pages which couldn't be fetched
+    private Set failed = new HashSet();
+
+    private Timer timer;
+    private boolean disposed;
+
+    /**
+     * @param loader fetches the pages
+     * @param rowCount the number of results of the search
+     * @param firstPage the first page of the results, which has already
+     *        been fetched. Its length is taken as the page size.
+     */
+    public LazyResults(Loader loader, int rowCount, Details[] firstPage) {
+	this.loader = loader;
+	this.rowCount = Math.max(rowCount, firstPage.length);
+	pageSize = Math.max(1, firstPage.length);
+	maxPages = Math.max(8, Integer.getInteger("jamazon.lazy.pages", DEFAULT_PAGES).intValue());
+
+	timer = new Timer(DELAY, new ActionListener() {
+		public void actionPerformed(ActionEvent evt) {
+		    fetchWanted();
+		}
+	    });
+	timer.setRepeats(false);
+
+	putPage(1, firstPage);
+    }
+
+    /**
+     * Called by the model when the results are displayed.
+     */
+    void setModel(DetailsTableModel model) {
+	this.model = model;
+    }
+
+    public int getRowCount() {
+	return rowCount;
+    }
+
+    public int getPageSize() {
+	return pageSize;
+    }
+
+    /**
+     * Returns the number of pages which are in memory.
+     */
+    public int getLoadedPageCount() {
+	return pages.size();
+    }
+
+    /**
+     * Returns the row or null if its page hasn't been fetched. The page
+     * will be fetched.
+     */
+    public ProductRow getRow(int row) {
+	if (row < 0 || row >= rowCount) {
+	    return null;
+	}
+	int page = getPage(row);
+	Integer key = new Integer(page);
+	ProductRow[] rows = (ProductRow[])pages.get(key);
+	int i = row - (page - 1) * pageSize;
+	if (rows != null) {
+	    // Most recently displayed
+	    pages.remove(key);
+	    pages.put(key, rows);
+	    // Fetch the next pages before they're scrolled into view
+	    near(page - 1);
+	    near(page + 1);
+	    return (i < rows.length ? rows[i] : null);
+	}
+	want(page);
+	return null;
+    }
+
+    /**
+     * Returns the row or null if its page isn't in memory. Unlike
+     * <code>getRow</code> this doesn't fetch any pages, so it may be used
+     * by code which looks at all of the rows.
+     */
+    public ProductRow peekRow(int row) {
+	if (row < 0 || row >= rowCount) {
+	    return null;
+	}
+	int page = getPage(row);
+	ProductRow[] rows = (ProductRow[])pages.get(new Integer(page));
+	int i = row - (page - 1) * pageSize;
+	return (rows != null && i < rows.length ? rows[i] : null);
+    }
+
+    /**
+     * Returns the details for the row or null if its page hasn't been
+     * fetched.
+     */
+    public Details getDetails(int row) {
+	if (row < 0 || row >= rowCount) {
+	    return null;
+	}
+	int page = getPage(row);
+	Details[] pageDetails = (Details[])details.get(new Integer(page));
+	int i = row - (page - 1) * pageSize;
+	return (pageDetails != null && i < pageDetails.length ? pageDetails[i] : null);
+    }
+
+    /**
+     * Returns the row of the product if its page is in memory.
+     *
+     * @return the row or -1
+     */
+    public int findRow(String asin) {
+	Iterator iter = details.entrySet().iterator();
+	while (iter.hasNext()) {
+	    Map.Entry entry = (Map.Entry)iter.next();
+	    Details[] page = (Details[])entry.getValue();
+	    for (int i = 0; i < page.length; i++) {
+		if (page[i] != null && asin.equals(page[i].getAsin())) {
+		    return (((Integer)entry.getKey()).intValue() - 1) * pageSize + i;
+		}
+	    }
+	}
+	return -1;
+    }
+
+    /**
+     * Returns true if the row is a placeholder for a page which is being
+     * fetched or will be.
+     */
+    public boolean isPending(int row) {
+	Integer page = new Integer(getPage(row));
+	return !details.containsKey(page) && !failed.contains(page);
+    }
+
+    /**
+     * Stops fetching. Called when the model is given other results.
+     */
+    public void dispose() {
+	disposed = true;
+	timer.stop();
+	Iterator iter = loading.values().iterator();
+	while (iter.hasNext()) {
+	    ((Task)iter.next()).cancel();
+	}
+	loading.clear();
+	pages.clear();
+	details.clear();
+    }
+
+    private int getPage(int row) {
+	return row / pageSize + 1;
+    }
+
+    private void want(int page) {
+	Integer key = new Integer(page);
+	if (!disposed && !failed.contains(key)) {
+	    wanted.put(key, new Long(System.currentTimeMillis()));
+	    timer.restart();
+	}
+    }
+
+    private void near(int page) {
+	if (page < 1 || (page - 1) * pageSize >= rowCount) {
+	    return;
+	}
+	Integer key = new Integer(page);
+	if (!disposed && !pages.containsKey(key) && !failed.contains(key)) {
+	    nearby.put(key, new Long(System.currentTimeMillis()));
+	    timer.restart();
+	}
+    }
+
+    /**
+     * Fetches the pages which have been asked for and their neighbours.
+     * The timer is restarted by each request so this runs once the table
+     * has stopped scrolling and only the pages which were painted at the
+     * end are fetched. Pages which are waiting to be fetched but are no
+     * longer wanted are cancelled.
+     */
+    private void fetchWanted() {
+	// The pages painted while scrolling past aren't wanted
+	long recent = System.currentTimeMillis() - 2 * DELAY;
+	Set visible = getRecent(wanted, recent);
+	Set fetch = getRecent(nearby, recent);
+	Iterator iter = visible.iterator();
+	while (iter.hasNext()) {
+	    int page = ((Integer)iter.next()).intValue();
+	    fetch.add(new Integer(page));
+	    if (page > 1) {
+		fetch.add(new Integer(page - 1));
+	    }
+	    if (page * pageSize < rowCount) {
+		fetch.add(new Integer(page + 1));
+	    }
+	}
+	wanted.clear();
+	nearby.clear();
+
+	iter = loading.entrySet().iterator();
+	while (iter.hasNext()) {
+	    Map.Entry entry = (Map.Entry)iter.next();
+	    if (!fetch.contains(entry.getKey())) {
+		((Task)entry.getValue()).cancel();
+		iter.remove();
+		Metrics.increment("lazy.cancelled");
+	    }
+	}
+
+	iter = fetch.iterator();
+	while (iter.hasNext()) {
+	    Integer page = (Integer)iter.next();
+	    if (!pages.containsKey(page) && !loading.containsKey(page) &&
+		!failed.contains(page)) {
+		load(page, visible.contains(page));
+	    }
+	}
+    }
+
+    private static Set getRecent(Map times, long recent) {
+	Set result = new HashSet();
+	Iterator iter = times.entrySet().iterator();
+	while (iter.hasNext()) {
+	    Map.Entry entry = (Map.Entry)iter.next();
+	    if (((Long)entry.getValue()).longValue() >= recent) {
+		result.add(entry.getKey());
+	    }
+	}
+	return result;
+    }
+
+    private void load(final Integer page, boolean visible) {
+	final int lane = (visible ? RequestScheduler.INTERACTIVE : RequestScheduler.PREFETCH);
+	Task task = new Task("page", visible ? Task.HIGH : Task.NORMAL) {
+		protected Object construct() throws Exception {
+		    return loader.loadPage(page.intValue(), lane);
+		}
+
+		protected void finished() {
+		    if (disposed || loading.get(page) != this) {
+			return;
+		    }
+		    loading.remove(page);
+		    Details[] results = (Details[])get();
+		    if (results == null) {
+			failed.add(page);
+			return;
+		    }
+		    Metrics.increment("lazy.pages");
+		    putPage(page.intValue(), results);
+		}
+	    };
+	loading.put(page, task);
+	task.start();
+    }
+
+    private void putPage(int page, Details[] results) {
+	int first = (page - 1) * pageSize;
+	if (first >= rowCount) {
+	    // After a short page
+	    return;
+	}
+	if (results.length < pageSize && first + results.length < rowCount) {
+	    // A short page is the last one
+	    int oldCount = rowCount;
+	    rowCount = first + results.length;
+	    if (model != null) {
+		model.fireTableRowsDeleted(rowCount, oldCount - 1);
+	    }
+	}
+
+	ProductRow[] rows = new ProductRow[results.length];
+	for (int i = 0; i < results.length; i++) {
+	    if (results[i] != null) {
+		rows[i] = new ProductRow(first + i, results[i]);
+	    }
+	}
+	Integer key = new Integer(page);
+	pages.put(key, rows);
+	details.put(key, results);
+
+	// Drop the pages which were displayed longest ago
+	Iterator iter = pages.keySet().iterator();
+	while (pages.size() > maxPages && iter.hasNext()) {
+	    Integer old = (Integer)iter.next();
+	    if (!old.equals(key)) {
+		iter.remove();
+		details.remove(old);
+		Metrics.increment("lazy.evicted");
+		updated(old.intValue());
+	    }
+	}
+
+	updated(page);
+    }
+
+    private void updated(int page) {
+	if (model == null) {
+	    return;
+	}
+	int first = (page - 1) * pageSize;
+	int last = Math.min(rowCount, first + pageSize) - 1;
+	if (first <= last) {
+	    model.fireTableRowsUpdated(first, last);
+	}
+    }
+}
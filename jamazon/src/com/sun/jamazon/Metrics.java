@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2018 Oracle and/or its affiliates. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Distribution License v. 1.0, which is available at
+ * http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+
+package com.sun.jamazon;
+
+import java.io.PrintStream;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Counters and values which are collected while the client runs so that
+ * its behaviour can be examined. Each metric has a name such as
+ * <code>edt.stalls</code> and a Long or String value. The metrics may be
+ * updated from any thread.
+ *
+ * @see MetricsPanel
+ */
+public class Metrics {
+
+    // name -> Long or String, sorted by name
+    private static Map metrics = new TreeMap();
+
+    private Metrics() {
+    }
+
+    /**
+     * Adds one to the counter.
+     */
+    public static void increment(String name) {
+	add(name, 1L);
+    }
+
+    /**
+     * Adds the amount to the counter.
+     */
+    public static synchronized void add(String name, long amount) {
+	metrics.put(name, new Long(getLong(name) + amount));
+    }
+
+    /**
+     * Sets the value if it's larger than the current value.
+     */
+    public static synchronized void max(String name, long value) {
+	if (!metrics.containsKey(name) || value > getLong(name)) {
+	    metrics.put(name, new Long(value));
+	}
+    }
+
+    public static synchronized void set(String name, long value) {
+	metrics.put(name, new Long(value));
+    }
+
+    public static synchronized void set(String name, String value) {
+	metrics.put(name, value);
+    }
+
+    /**
+     * Returns the value of the metric or null if it hasn't been set.
+     */
+    public static synchronized Object get(String name) {
+	return metrics.get(name);
+    }
+
+    private static long getLong(String name) {
+	Object value = metrics.get(name);
+	return (value instanceof Long ? ((Long)value).longValue() : 0L);
+    }
+
+    /**
+     * Returns a copy of all the metrics sorted by name.
+     */
+    public static synchronized Map getMetrics() {
+	return new TreeMap(metrics);
+    }
+
+    public static void print(PrintStream out) {
+	Iterator iter = getMetrics().entrySet().iterator();
+	while (iter.hasNext()) {
+	    Map.Entry entry = (Map.Entry)iter.next();
+	    out.println(entry.getKey() + "\t" + entry.getValue());
+	}
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2018 Oracle and/or its affiliates. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Distribution License v. 1.0, which is available at
+ * http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+
+package com.sun.jamazon;
+
+import java.awt.BorderLayout;
+import java.awt.Component;
+import java.awt.Dimension;
+import java.awt.Frame;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+
+import java.util.Iterator;
+import java.util.Map;
+
+import javax.swing.JDialog;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JSplitPane;
+import javax.swing.JTable;
+import javax.swing.JTextArea;
+import javax.swing.ListSelectionModel;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+
+import javax.swing.event.ListSelectionEvent;
+import javax.swing.event.ListSelectionListener;
+
+import javax.swing.table.DefaultTableModel;
+
+/**
+ * Shows the current <code>Metrics</code>. The table is refreshed every
+ * second and the full text of the selected metric, such as the stack of
+ * the last stall of the event dispatch thread, is shown below it.
+ */
+public class MetricsPanel extends JPanel {
+
+    private static final String[] COLUMNS = { "Metric", "Value" };
+
+    private DefaultTableModel tableModel;
+    private JTable table;
+    private JTextArea text;
+    private Timer timer;
+
+    public MetricsPanel() {
+	setLayout(new BorderLayout());
+
+	tableModel = new DefaultTableModel(COLUMNS, 0) {
+		public boolean isCellEditable(int row, int column) {
+		    return false;
+		}
+	    };
+	table = new JTable(tableModel);
+	table.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+	table.getSelectionModel().addListSelectionListener(new ListSelectionListener() {
+		public void valueChanged(ListSelectionEvent evt) {
+		    showSelected();
+		}
+	    });
+
+	text = new JTextArea(8, 40);
+	text.setEditable(false);
+
+	JSplitPane splitpane = new JSplitPane(JSplitPane.VERTICAL_SPLIT,
+					      new JScrollPane(table), 
+					      new JScrollPane(text));
+	splitpane.setPreferredSize(new Dimension(500, 400));
+	add(splitpane, BorderLayout.CENTER);
+
+	timer = new Timer(1000, new ActionListener() {
+		public void actionPerformed(ActionEvent evt) {
+		    refresh();
+		}
+	    });
+	refresh();
+    }
+
+    public void start() {
+	timer.start();
+    }
+
+    public void stop() {
+	timer.stop();
+    }
+
+    private void refresh() {
+	Map metrics = Metrics.getMetrics();
+	tableModel.setRowCount(metrics.size());
+
+	int row = 0;
+	Iterator iter = metrics.entrySet().iterator();
+	while (iter.hasNext()) {
+	    Map.Entry entry = (Map.Entry)iter.next();
+	    String value = String.valueOf(entry.getValue());
+	    int newline = value.indexOf('\n');
+	    if (newline != -1) {
+		value = value.substring(0, newline) + "...";
+	    }
+	    if (!entry.getKey().equals(tableModel.getValueAt(row, 0))) {
+		tableModel.setValueAt(entry.getKey(), row, 0);
+	    }
+	    if (!value.equals(tableModel.getValueAt(row, 1))) {
+		tableModel.setValueAt(value, row, 1);
+	    }
+	    row++;
+	}
+	showSelected();
+    }
+
+    private void showSelected() {
+	int row = table.getSelectedRow();
+	if (row != -1) {
+	    Object value = Metrics.get((String)tableModel.getValueAt(row, 0));
+	    String newText = String.valueOf(value);
+	    if (!newText.equals(text.getText())) {
+		text.setText(newText);
+		text.setCaretPosition(0);
+	    }
+	}
+    }
+
+    /**
+     * Shows the metrics in a dialog.
+     */
+    public static void showDialog(Component parent) {
+	Frame frame = (Frame)SwingUtilities.getAncestorOfClass(Frame.class, parent);
+	JDialog dialog = new JDialog(frame, "JAmazon Metrics");
+	final MetricsPanel panel = new MetricsPanel();
+	dialog.getContentPane().add(panel);
+	dialog.addWindowListener(new WindowAdapter() {
+		public void windowClosed(WindowEvent evt) {
+		    panel.stop();
+		}
+	    });
+	dialog.setDefaultCloseOperation(JDialog.DISPOSE_ON_CLOSE);
+	dialog.pack();
+	dialog.setLocationRelativeTo(parent);
+	panel.start();
+	dialog.setVisible(true);
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2018 Oracle and/or its affiliates. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Distribution License v. 1.0, which is available at
+ * http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+
+package com.sun.jamazon;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A text template with tags of the form <code>@NAME@</code> which are
+ * replaced by values. The template is split into its literal text and
+ * tags once when it's constructed so rendering is just a series of
+ * appends.
+ */
+public class PageTemplate {
+
+    // The literal text before each tag. There is one more literal than tag.
+    private String[] literals;
+    private String[] tags;
+    private int length;
+
+    public PageTemplate(String template) {
+	List literalList = new ArrayList();
+	List tagList = new ArrayList();
+
+	int start = 0;
+	int open;
+	while ((open = template.indexOf('@', start)) != -1) {
+	    int close = template.indexOf('@', open + 1);
+	    if (close == -1) {
+		break;
+	    }
+	    literalList.add(template.substring(start, open));
+	    tagList.add(template.substring(open + 1, close));
+	    start = close + 1;
+	}
+	literalList.add(template.substring(start));
+
+	literals = (String[])literalList.toArray(new String[literalList.size()]);
+	tags = (String[])tagList.toArray(new String[tagList.size()]);
+	length = template.length();
+    }
+
+    /**
+     * Appends the template to the buffer with each tag replaced by its
+     * value. Tags which don't have a value are replaced by an empty string.
+     *
+     * @param values maps the tag names to their values
+     */
+    public void render(Map values, StringBuffer buffer) {
+	for (int i = 0; i < tags.length; i++) {
+	    buffer.append(literals[i]);
+	    Object value = values.get(tags[i]);
+	    if (value != null) {
+		buffer.append(value);
+	    }
+	}
+	buffer.append(literals[tags.length]);
+    }
+
+    public String render(Map values) {
+	StringBuffer buffer = new StringBuffer(length * 2);
+	render(values, buffer);
+	return buffer.toString();
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright (c) 2018 Oracle and/or its affiliates. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Distribution License v. 1.0, which is available at
+ * http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+
+package com.sun.jamazon;
+
+import javax.swing.ListSelectionModel;
+
+import javax.swing.event.TableModelEvent;
+import javax.swing.event.TableModelListener;
+
+/**
+ * Computes the count, total, minimum, maximum and average Amazon price of
+ * ranges of rows in a <code>DetailsTableModel</code>.
+ * <p>
+ * The prices are summarized in the order the rows are displayed. The total
+ * of a range is the difference of two prefix sums. The minimum and maximum
+ * are found from the running minimum and maximum within blocks of rows and
+ * a sparse table over the whole blocks. Each range takes a constant amount
+ * of work regardless of its size.
+ * <p>
+ * The summary is rebuilt the first time that it's used after the model has
+ * changed, so adding pages or sorting costs nothing until the next query.
+ */
+public class PriceAggregates implements TableModelListener {
+
+    private static final int BLOCK_SHIFT = 6;
+    private static final int BLOCK_SIZE = 1 << BLOCK_SHIFT;
+
+    private DetailsTableModel model;
+
+    private boolean valid;
+    private int size;
+
+    private float[] prices;
+
+    // sums[i] is the total of the rows before i
+    private double[] sums;
+
+    // Running values from the start of a block to the row and from the
+    // row to the end of its block
+    private float[] prefixMin;
+    private float[] prefixMax;
+    private float[] suffixMin;
+    private float[] suffixMax;
+
+    // blockMin[k][b] is the minimum of the 2^k blocks starting at block b
+    private float[][] blockMin;
+    private float[][] blockMax;
+    private int[] logs;
+
+    public PriceAggregates(DetailsTableModel model) {
+	this.model = model;
+	model.addTableModelListener(this);
+    }
+
+    public void tableChanged(TableModelEvent evt) {
+	valid = false;
+    }
+
+    /**
+     * Returns the totals of all the selected rows. Each contiguous range
+     * of the selection is summarized separately.
+     */
+    public Totals getTotals(ListSelectionModel selection) {
+	Totals totals = new Totals();
+	if (selection.isSelectionEmpty()) {
+	    return totals;
+	}
+
+	int first = selection.getMinSelectionIndex();
+	int last = selection.getMaxSelectionIndex();
+	int start = first;
+	for (int i = first; i <= last + 1; i++) {
+	    if (i > last || !selection.isSelectedIndex(i)) {
+		if (start < i) {
+		    addRange(totals, start, i - 1);
+		}
+		start = i + 1;
+	    }
+	}
+	return totals;
+    }
+
+    /**
+     * Returns the totals of the rows from first to last inclusive.
+     */
+    public Totals getTotals(int first, int last) {
+	Totals totals = new Totals();
+	addRange(totals, first, last);
+	return totals;
+    }
+
+    private void addRange(Totals totals, int first, int last) {
+	validate();
+
+	first = Math.max(first, 0);
+	last = Math.min(last, size - 1);
+	if (first > last) {
+	    return;
+	}
+
+	float min;
+	float max;
+	int firstBlock = first >> BLOCK_SHIFT;
+	int lastBlock = last >> BLOCK_SHIFT;
+	if (firstBlock == lastBlock) {
+	    // Within a single block
+	    min = Float.MAX_VALUE;
+	    max = -Float.MAX_VALUE;
+	    for (int i = first; i <= last; i++) {
+		min = Math.min(min, prices[i]);
+		max = Math.max(max, prices[i]);
+	    }
+	} else {
+	    min = Math.min(suffixMin[first], prefixMin[last]);
+	    max = Math.max(suffixMax[first], prefixMax[last]);
+	    if (lastBlock - firstBlock > 1) {
+		int low = firstBlock + 1;
+		int high = lastBlock - 1;
+		int k = logs[high - low + 1];
+		int other = high - (1 << k) + 1;
+		min = Math.min(min, Math.min(blockMin[k][low], blockMin[k][other]));
+		max = Math.max(max, Math.max(blockMax[k][low], blockMax[k][other]));
+	    }
+	}
+
+	totals.add(last - first + 1, sums[last + 1] - sums[first], min, max);
+    }
+
+    /**
+     * Rebuilds the summary if the model has changed.
+     */
+    private void validate() {
+	if (valid) {
+	    return;
+	}
+
+	size = model.getRowCount();
+	if (sums == null || sums.length < size + 1) {
+	    int capacity = Math.max(size + 1, 64);
+	    prices = new float[capacity];
+	    sums = new double[capacity];
+	    prefixMin = new float[capacity];
+	    prefixMax = new float[capacity];
+	    suffixMin = new float[capacity];
+	    suffixMax = new float[capacity];
+	}
+
+	for (int i = 0; i < size; i++) {
+	    prices[i] = model.getPrice(i);
+	    sums[i + 1] = sums[i] + prices[i];
+	}
+
+	int blocks = (size + BLOCK_SIZE - 1) >> BLOCK_SHIFT;
+	for (int i = 0; i < size; i++) {
+	    if ((i & (BLOCK_SIZE - 1)) == 0) {
+		prefixMin[i] = prices[i];
+		prefixMax[i] = prices[i];
+	    } else {
+		prefixMin[i] = Math.min(prefixMin[i - 1], prices[i]);
+		prefixMax[i] = Math.max(prefixMax[i - 1], prices[i]);
+	    }
+	}
+	for (int i = size - 1; i >= 0; i--) {
+	    if (i == size - 1 || ((i + 1) & (BLOCK_SIZE - 1)) == 0) {
+		suffixMin[i] = prices[i];
+		suffixMax[i] = prices[i];
+	    } else {
+		suffixMin[i] = Math.min(suffixMin[i + 1], prices[i]);
+		suffixMax[i] = Math.max(suffixMax[i + 1], prices[i]);
+	    }
+	}
+
+	logs = new int[blocks + 1];
+	for (int i = 2; i <= blocks; i++) {
+	    logs[i] = logs[i >> 1] + 1;
+	}
+
+	int levels = (blocks > 0 ? logs[blocks] + 1 : 0);
+	blockMin = new float[levels][];
+	blockMax = new float[levels][];
+	if (levels > 0) {
+	    blockMin[0] = new float[blocks];
+	    blockMax[0] = new float[blocks];
+	    for (int b = 0; b < blocks; b++) {
+		// The last row of the block holds the minimum of the block
+		int last = Math.min(((b + 1) << BLOCK_SHIFT), size) - 1;
+		blockMin[0][b] = prefixMin[last];
+		blockMax[0][b] = prefixMax[last];
+	    }
+	    for (int k = 1; k < levels; k++) {
+		int count = blocks - (1 << k) + 1;
+		int half = 1 << (k - 1);
+		blockMin[k] = new float[count];
+		blockMax[k] = new float[count];
+		for (int b = 0; b < count; b++) {
+		    blockMin[k][b] = Math.min(blockMin[k - 1][b], blockMin[k - 1][b + half]);
+		    blockMax[k][b] = Math.max(blockMax[k - 1][b], blockMax[k - 1][b + half]);
+		}
+	    }
+	}
+	valid = true;
+    }
+
+    /**
+     * The summary of the prices of a set of rows.
+     */
+    public static class Totals {
+
+	private int count;
+	private double total;
+	private float min = Float.MAX_VALUE;
+	private float max = -Float.MAX_VALUE;
+
+	void add(int count, double total, float min, float max) {
+	    this.count += count;
+	    this.total += total;
+	    this.min = Math.min(this.min, min);
+	    this.max = Math.max(this.max, max);
+	}
+
+	public int getCount() {
+	    return count;
+	}
+
+	public float getTotal() {
+	    return (float)total;
+	}
+
+	public float getMinimum() {
+	    return (count > 0 ? min : 0f);
+	}
+
+	public float getMaximum() {
+	    return (count > 0 ? max : 0f);
+	}
+
+	public float getAverage() {
+	    return (count > 0 ? (float)(total / count) : 0f);
+	}
+    }
+}
@@ -0,0 +1,514 @@
+/*
+ * Copyright (c) 2018 Oracle and/or its affiliates. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Distribution License v. 1.0, which is available at
+ * http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+
+package com.sun.jamazon;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+
+import java.text.DecimalFormat;
+import java.text.ParseException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EventObject;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.StringTokenizer;
+
+import myamazonclient.AmazonClientGenClient.Details;
+
+/**
+ * Watches the price and sales rank of products. A watch is either a
+ * single product or the products found by a keyword search. Each watch is
+ * polled on its own interval, which is halved when any of its values have
+ * changed since the last poll and grows by half when they haven't, within
+ * <code>jamazon.watch.min</code> and <code>jamazon.watch.max</code>
+ * seconds. A new watch is polled every <code>jamazon.watch.interval</code>
+ * seconds to begin with.
+ * <p>
+ * The polls are scheduled on a TimingWheel and sent one at a time on a
+ * task thread in the bulk lane of the RequestScheduler. The listeners are
+ * notified on the event dispatch thread when a value crosses the
+ * threshold set on its watch.
+ * <p>
+ * May be run from the command line with a file which lists the watches:
+ * <pre>
+ *   asin 0596007124 price=29.99 rank=1000
+ *   keyword books java swing price=20
+ * </pre>
+ */
+public class PriceWatch {
+
+    private static final int DEFAULT_INTERVAL = 15 * 60;
+    private static final int DEFAULT_MIN = 60;
+    private static final int DEFAULT_MAX = 6 * 60 * 60;
+
+    private static final long TICK = 1000L;
+
+    public static final String PRICE = "price";
+    public static final String RANK = "rank";
+
+    /**
+     * Notified on the event dispatch thread when a value crosses a
+     * threshold.
+     */
+    public interface Listener {
+	public void thresholdCrossed(Event evt);
+    }
+
+    private int initialInterval;
+    private int minInterval;
+    private int maxInterval;
+
+    private TimingWheel wheel;
+    private TaskExecutor executor;
+    private AmazonProxy proxy;
+
+    private List watches = new ArrayList();
+    private List listeners = new ArrayList();
+
+    public PriceWatch() {
+	initialInterval = Integer.getInteger("jamazon.watch.interval", DEFAULT_INTERVAL).intValue();
+	minInterval = Integer.getInteger("jamazon.watch.min", DEFAULT_MIN).intValue();
+	maxInterval = Integer.getInteger("jamazon.watch.max", DEFAULT_MAX).intValue();
+
+	wheel = new TimingWheel("JAmazon watch timer", TICK);
+	// The requests are sent one at a time
+	executor = new TaskExecutor("JAmazon watch", 1);
+	proxy = new AmazonProxy();
+    }
+
+    public synchronized void addListener(Listener listener) {
+	listeners.add(listener);
+    }
+
+    public synchronized void removeListener(Listener listener) {
+	listeners.remove(listener);
+    }
+
+    /**
+     * Watches a single product.
+     */
+    public Watch watchAsin(String asin) {
+	return add(new Watch(asin, null, null));
+    }
+
+    /**
+     * Watches the products on the first page of a keyword search.
+     *
+     * @param mode one of AmazonProxy.MODE_KEYS
+     */
+    public Watch watchKeyword(String keyword, String mode) {
+	return add(new Watch(null, keyword, mode));
+    }
+
+    private Watch add(Watch watch) {
+	synchronized (this) {
+	    watches.add(watch);
+	}
+	watch.interval = initialInterval;
+	schedule(watch, 0);
+	return watch;
+    }
+
+    /**
+     * Stops watching.
+     */
+    public void remove(Watch watch) {
+	synchronized (this) {
+	    watches.remove(watch);
+	}
+	watch.cancel();
+    }
+
+    public synchronized List getWatches() {
+	return Collections.unmodifiableList(new ArrayList(watches));
+    }
+
+    private void schedule(final Watch watch, long delay) {
+	synchronized (watch) {
+	    if (watch.removed) {
+		return;
+	    }
+	    watch.timeout = wheel.schedule(new Runnable() {
+		    public void run() {
+			poll(watch);
+		    }
+		}, delay);
+	}
+    }
+
+    /**
+     * Queues the request for the watch. Called on the timer thread.
+     */
+    private void poll(final Watch watch) {
+	Task task = new Task("watch", Task.LOW) {
+		protected Object construct() throws Exception {
+		    return fetch(watch);
+		}
+
+		protected void finished() {
+		    Details[] details = (Details[])get();
+		    if (details != null) {
+			update(watch, details);
+		    }
+		    schedule(watch, watch.interval * 1000L);
+		}
+	    };
+	synchronized (watch) {
+	    if (watch.removed) {
+		return;
+	    }
+	    watch.task = task;
+	}
+	task.start(executor);
+    }
+
+    /**
+     * Sends the request for the watch. Called on the task thread.
+     */
+    private Details[] fetch(Watch watch) throws Exception {
+	RequestScheduler.getDefault().acquire(RequestScheduler.BULK);
+	boolean success;
+	if (watch.asin != null) {
+	    success = proxy.executeAsinRequest(watch.asin);
+	} else {
+	    proxy.setKeyword(watch.keyword);
+	    proxy.setMode(watch.mode);
+	    proxy.setPage(1);
+	    success = proxy.executeRequest();
+	}
+	if (!success) {
+	    throw new IOException("Unable to poll " + watch);
+	}
+	Metrics.increment("watch.polls");
+	return proxy.getDetails();
+    }
+
+    /**
+     * Compares the new values with the last poll, adjusts the interval
+     * and notifies the listeners of any thresholds which have been
+     * crossed. Called on the event dispatch thread.
+     */
+    private void update(Watch watch, Details[] details) {
+	boolean changed = false;
+	boolean first = watch.values.isEmpty();
+	for (int i = 0; i < details.length; i++) {
+	    Details d = details[i];
+	    if (d == null || d.getAsin() == null) {
+		continue;
+	    }
+	    float price = DetailsTableModel.getFloatFromPrice(d.getOurPrice()).floatValue();
+	    int rank = getRank(d.getSalesRank());
+
+	    float[] values = (float[])watch.values.get(d.getAsin());
+	    if (values == null) {
+		watch.values.put(d.getAsin(), new float[] { price, rank });
+		continue;
+	    }
+	    if (values[0] != price) {
+		changed = true;
+		check(watch, d, PRICE, values[0], price, watch.priceThreshold);
+		values[0] = price;
+	    }
+	    if (values[1] != rank) {
+		changed = true;
+		check(watch, d, RANK, values[1], rank, watch.rankThreshold);
+		values[1] = rank;
+	    }
+	}
+
+	if (changed) {
+	    Metrics.increment("watch.changes");
+	    watch.interval = Math.max(minInterval, watch.interval / 2);
+	} else if (!first) {
+	    watch.interval = Math.min(maxInterval,
+				      watch.interval + Math.max(1, watch.interval / 2));
+	}
+    }
+
+    private void check(Watch watch, Details details, String property,
+		       float oldValue, float newValue, float threshold) {
+	if (threshold <= 0 || oldValue <= 0 || newValue <= 0) {
+	    // No threshold or the value isn't known
+	    return;
+	}
+	if ((oldValue > threshold) == (newValue > threshold)) {
+	    return;
+	}
+
+	Event evt = new Event(watch, details.getAsin(), details.getProductName(),
+			      property, oldValue, newValue, threshold);
+	Metrics.increment("watch.events");
+	Object[] targets;
+	synchronized (this) {
+	    targets = listeners.toArray();
+	}
+	for (int i = 0; i < targets.length; i++) {
+	    ((Listener)targets[i]).thresholdCrossed(evt);
+	}
+    }
+
+    /**
+     * Converts the sales rank "1,234" to an int. Returns 0 if there is no
+     * rank.
+     */
+    private static int getRank(String value) {
+	if (value == null || "".equals(value)) {
+	    return 0;
+	}
+	try {
+	    // Amazon formats the ranks the US way whatever the local format
+	    return DecimalFormat.getInstance(Locale.US).parse(value).intValue();
+	} catch (ParseException ex) {
+	    return 0;
+	}
+    }
+
+    /**
+     * A product or keyword search which is being watched.
+     */
+    public static class Watch {
+	private String asin;
+	private String keyword;
+	private String mode;
+
+	private float priceThreshold;
+	private int rankThreshold;
+
+	// The current interval in seconds
+	private int interval;
+	private TimingWheel.Timeout timeout;
+	private Task task;
+	private boolean removed;
+
+	// ASIN -> float[] { price, rank } from the last poll
+	private Map values = new HashMap();
+
+	Watch(String asin, String keyword, String mode) {
+	    this.asin = asin;
+	    this.keyword = keyword;
+	    this.mode = mode;
+	}
+
+	public String getAsin() {
+	    return asin;
+	}
+
+	public String getKeyword() {
+	    return keyword;
+	}
+
+	/**
+	 * Notify the listeners when the price of a product goes below or
+	 * above the threshold. 0 for no threshold.
+	 */
+	public void setPriceThreshold(float threshold) {
+	    priceThreshold = threshold;
+	}
+
+	public float getPriceThreshold() {
+	    return priceThreshold;
+	}
+
+	/**
+	 * Notify the listeners when the sales rank of a product goes below
+	 * or above the threshold. 0 for no threshold.
+	 */
+	public void setRankThreshold(int threshold) {
+	    rankThreshold = threshold;
+	}
+
+	public int getRankThreshold() {
+	    return rankThreshold;
+	}
+
+	/**
+	 * Returns the time between polls in seconds.
+	 */
+	public int getInterval() {
+	    return interval;
+	}
+
+	private synchronized void cancel() {
+	    removed = true;
+	    if (timeout != null) {
+		timeout.cancel();
+	    }
+	    if (task != null) {
+		task.cancel();
+	    }
+	}
+
+	public String toString() {
+	    return asin != null ? "asin " + asin : "keyword " + mode + " " + keyword;
+	}
+    }
+
+    /**
+     * Sent when a price or sales rank crosses the threshold of its watch.
+     * The source is the Watch.
+     */
+    public static class Event extends EventObject {
+	private String asin;
+	private String name;
+	private String property;
+	private float oldValue;
+	private float newValue;
+	private float threshold;
+
+	public Event(Watch watch, String asin, String name, String property,
+		     float oldValue, float newValue, float threshold) {
+	    super(watch);
+	    this.asin = asin;
+	    this.name = name;
+	    this.property = property;
+	    this.oldValue = oldValue;
+	    this.newValue = newValue;
+	    this.threshold = threshold;
+	}
+
+	public Watch getWatch() {
+	    return (Watch)getSource();
+	}
+
+	public String getAsin() {
+	    return asin;
+	}
+
+	public String getProductName() {
+	    return name;
+	}
+
+	/**
+	 * Returns PRICE or RANK.
+	 */
+	public String getProperty() {
+	    return property;
+	}
+
+	public float getOldValue() {
+	    return oldValue;
+	}
+
+	public float getNewValue() {
+	    return newValue;
+	}
+
+	public float getThreshold() {
+	    return threshold;
+	}
+
+	/**
+	 * Returns true if the value has gone below the threshold.
+	 */
+	public boolean isBelow() {
+	    return newValue <= threshold;
+	}
+
+	public String toString() {
+	    return asin + " " + name + ": " + property + " " + oldValue + " -> " +
+		newValue + (isBelow() ? " below " : " above ") + threshold;
+	}
+    }
+
+    /**
+     * Reads the watches from a file. Each line is "asin <ASIN>" or
+     * "keyword <mode> <keyword>" followed by optional "price=" and
+     * "rank=" thresholds.
+     */
+    public void load(String filename) throws IOException {
+	BufferedReader reader = new BufferedReader(new FileReader(filename));
+	try {
+	    String line;
+	    while ((line = reader.readLine()) != null) {
+		StringTokenizer tokens = new StringTokenizer(line);
+		if (!tokens.hasMoreTokens() || line.trim().startsWith("#")) {
+		    continue;
+		}
+		String type = tokens.nextToken();
+		String asin = null;
+		String mode = null;
+		if ("asin".equals(type) && tokens.hasMoreTokens()) {
+		    asin = tokens.nextToken();
+		} else if ("keyword".equals(type) && tokens.hasMoreTokens()) {
+		    mode = tokens.nextToken();
+		} else {
+		    System.err.println("Ignoring " + line);
+		    continue;
+		}
+
+		StringBuffer keyword = new StringBuffer();
+		float price = 0;
+		int rank = 0;
+		while (tokens.hasMoreTokens()) {
+		    String token = tokens.nextToken();
+		    try {
+			if (token.startsWith("price=")) {
+			    price = Float.parseFloat(token.substring(6));
+			} else if (token.startsWith("rank=")) {
+			    rank = Integer.parseInt(token.substring(5));
+			} else {
+			    if (keyword.length() > 0) {
+				keyword.append(' ');
+			    }
+			    keyword.append(token);
+			}
+		    } catch (NumberFormatException ex) {
+			System.err.println("Bad threshold " + token + " in " + line);
+		    }
+		}
+
+		Watch watch = (asin != null ? watchAsin(asin)
+			       : watchKeyword(keyword.toString(), mode));
+		watch.setPriceThreshold(price);
+		watch.setRankThreshold(rank);
+	    }
+	} finally {
+	    reader.close();
+	}
+    }
+
+    public static void main(String[] args) {
+	if (args.length == 0) {
+	    System.err.println("Usage: java com.sun.jamazon.PriceWatch <watchlist>");
+	    System.exit(1);
+	}
+
+	PriceWatch watch = new PriceWatch();
+	watch.addListener(new Listener() {
+		public void thresholdCrossed(Event evt) {
+		    System.out.println(new java.util.Date() + " " + evt);
+		}
+	    });
+	try {
+	    watch.load(args[0]);
+	} catch (IOException ex) {
+	    ex.printStackTrace();
+	    System.exit(1);
+	}
+	System.out.println("Watching " + watch.getWatches().size() + " products and searches");
+
+	// The timer and task threads are daemons
+	synchronized (watch) {
+	    while (true) {
+		try {
+		    watch.wait();
+		} catch (InterruptedException ex) {
+		    break;
+		}
+	    }
+	}
+    }
+}
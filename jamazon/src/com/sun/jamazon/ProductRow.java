@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2018 Oracle and/or its affiliates. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Distribution License v. 1.0, which is available at
+ * http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+
+package com.sun.jamazon;
+
+import myamazonclient.AmazonClientGenClient.Details;
+import myamazonclient.AmazonClientGenClient.Reviews;
+
+/**
+ * The column values for a row of the <code>DetailsTableModel</code>. One of
+ * these is kept in memory for every row so that the table can be painted
+ * and sorted without the complete Details, which are held in a
+ * <code>DetailsStore</code>.
+ * <p>
+ * The row is kept as small as possible. The prices and the rating are
+ * primitives and the author is shared through the <code>StringPool</code>.
+ * Only the title and the ASIN are unique to each row. The target is 40 bytes
+ * for the row itself, which is about 170 bytes with a typical title and
+ * ASIN. The <code>main</code> method measures the actual size.
+ *
+ * @see DetailsStore
+ * @see StringPool
+ */
+public class ProductRow {
+
+    private static final String NO_AUTHOR = "[ no author ]";
+    private static final String NO_RATING = "";
+
+    // The ratings are stored in tenths of a star. These are the strings
+    // for each of them.
+    private static final String[] RATINGS = new String[51];
+    static {
+	for (int i = 0; i < RATINGS.length; i++) {
+	    RATINGS[i] = (i / 10) + "." + (i % 10);
+	}
+    }
+
+    private int id;
+    private String asin;
+
+    private String title;
+    private String author;
+    private float listPrice;
+    private float ourPrice;
+    private byte rating = -1;
+
+    /**
+     * @param id the id of the details in the DetailsStore
+     */
+    public ProductRow(int id, Details details) {
+	this.id = id;
+	asin = details.getAsin();
+
+	title = details.getProductName();
+
+	String[] authors = details.getAuthors();
+	if (authors != null && authors.length > 0) {
+	    if (authors.length > 1) {
+		// multiple authors
+		author = StringPool.get(authors[0] + ", et al");
+	    } else {
+		author = StringPool.get(authors[0]);
+	    }
+	}
+
+	listPrice = DetailsTableModel.getFloatFromPrice(details.getListPrice()).floatValue();
+	ourPrice = DetailsTableModel.getFloatFromPrice(details.getOurPrice()).floatValue();
+
+	Reviews reviews = details.getReviews();
+	if (reviews != null && reviews.getAvgCustomerRating() != null) {
+	    try {
+		float value = Float.parseFloat(reviews.getAvgCustomerRating());
+		rating = (byte)Math.max(0, Math.min(50, Math.round(value * 10f)));
+	    } catch (NumberFormatException ex) {
+		// drop through, not rated
+	    }
+	}
+    }
+
+    public int getId() {
+	return id;
+    }
+
+    public String getAsin() {
+	return asin;
+    }
+
+    public String getTitle() {
+	return title;
+    }
+
+    public String getAuthor() {
+	return (author != null ? author : NO_AUTHOR);
+    }
+
+    public float getListPrice() {
+	return listPrice;
+    }
+
+    public float getOurPrice() {
+	return ourPrice;
+    }
+
+    /**
+     * Returns the average customer rating such as "4.5" or an empty string
+     * if there are no reviews.
+     */
+    public String getRating() {
+	return (rating >= 0 ? RATINGS[rating] : NO_RATING);
+    }
+
+    /**
+     * Measures the heap used per row for a number of generated rows with
+     * typical values.
+     *
+     * usage: java com.sun.jamazon.ProductRow [rows]
+     */
+    public static void main(String[] args) {
+	int count = (args.length > 0 ? Integer.parseInt(args[0]) : 100000);
+
+	Details details = new Details();
+	details.setAuthors(new String[] { "Mark Davidson" });
+	details.setListPrice("$49.99");
+	details.setOurPrice("$34.99");
+	Reviews reviews = new Reviews();
+	reviews.setAvgCustomerRating("4.5");
+	details.setReviews(reviews);
+
+	ProductRow[] rows = new ProductRow[count];
+	long before = usedMemory();
+	for (int i = 0; i < count; i++) {
+	    details.setAsin(Integer.toString(1000000000 + i));
+	    details.setProductName("Java Web Services Volume " + i);
+	    rows[i] = new ProductRow(i, details);
+	}
+	long after = usedMemory();
+
+	System.out.println(count + " rows: " + ((after - before) / count) +
+			   " bytes per row including the title and ASIN");
+	System.out.println(rows[count - 1].getTitle());
+    }
+
+    private static long usedMemory() {
+	Runtime runtime = Runtime.getRuntime();
+	for (int i = 0; i < 4; i++) {
+	    System.gc();
+	}
+	return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -13,6 +13,7 @@ package com.sun.jamazon;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 
+import java.util.List;
 import java.util.TimerTask;
 
 import javax.swing.SwingUtilities;
@@ -33,22 +34,72 @@ public class RequestHandler implements ActionListener {
     private DetailsTableModel model;
     private JAmazon ui;
     private Timer timer;
+    private UpdateCoalescer coalescer;
+    private Task searchTask;
+    private SearchCache cache = new SearchCache();
+
+    // Searches while typing
+    private static final int DEFAULT_DEBOUNCE = 400;
+    private static final int MIN_KEYWORD_LENGTH = 3;
+
+    // Only fetch the pages as they're scrolled into view
+    private static final boolean LAZY = Boolean.getBoolean("jamazon.search.lazy");
+
+    // Only keep the best results by the sorted column
+    private static final int TOP = Integer.getInteger("jamazon.search.top", 0).intValue();
+    private Timer typingTimer;
+    private String lastKeyword;
+    private String lastMode;
 
     public RequestHandler(AmazonProxy proxy, DetailsTableModel model, 
 			 JAmazon ui) {
 	this.proxy = proxy;
 	this.model = model;
 	this.ui = ui;
+	coalescer = new UpdateCoalescer(model, ui);
+
+	typingTimer = new Timer(Integer.getInteger("jamazon.search.debounce", 
+						   DEFAULT_DEBOUNCE).intValue(), 
+				new ActionListener() {
+		public void actionPerformed(ActionEvent evt) {
+		    String keyword = ui.getKeyword().trim();
+		    if (keyword.length() >= MIN_KEYWORD_LENGTH && 
+			!(keyword.equals(lastKeyword) && ui.getMode().equals(lastMode))) {
+			search();
+		    }
+		}
+	    });
+	typingTimer.setRepeats(false);
     }
 
     public void actionPerformed(ActionEvent evt) {
-	proxy.setKeyword(ui.getKeyword());
-	proxy.setPage(1);
-	    
+	typingTimer.stop();
+	search();
+    }
+
+    /**
+     * Called as the keyword is typed. The search starts when the user 
+     * stops typing for the debounce time, which is set with the
+     * <code>jamazon.search.debounce</code> system property (in milliseconds).
+     */
+    public void keywordChanged() {
+	typingTimer.restart();
+    }
+
+    private void search() {
+	lastKeyword = ui.getKeyword().trim();
+	lastMode = ui.getMode();
+
 	// This is a long operation and is executed on a new thread.
 	setStatusMessage("Fetching results....");
 	
-	executeRequest2();
+	if (TOP > 0) {
+	    executeRequest5();
+	} else if (LAZY) {
+	    executeRequest4();
+	} else {
+	    executeRequest3();
+	}
     }
 
     private void setStatusMessage(String message) {
@@ -56,19 +107,23 @@ public class RequestHandler implements ActionListener {
     }
 
     /**
-     * Uses the SwingWorker. This works corectly but will only return 
+     * Uses a Task. This works corectly but will only return 
      * 10 results.
      */
     private void executeRequest0() {
-	SwingWorker worker = new SwingWorker() {
-		public Object construct() {
+	Task task = new Task("search") {
+		protected Object construct() throws InterruptedException {
+		    proxy.setKeyword(lastKeyword);
+		    proxy.setPage(1);
+		    RequestScheduler.getDefault().acquire(RequestScheduler.INTERACTIVE);
 		    if (proxy.executeRequest()) {
+			ReviewStore.getDefault().strip(proxy.getDetails());
 			return proxy.getDetails();
 		    }
 		    return null;
 		}
 		
-		public void finished() {
+		protected void finished() {
 		    Object results = get();
 		    if (results != null) {
 			model.setDetails((Details[])results);
@@ -78,7 +133,7 @@ public class RequestHandler implements ActionListener {
 		    }			    
 		}
 	    };
-	worker.start();
+	task.start();
     }
 
     /**
@@ -86,11 +141,21 @@ public class RequestHandler implements ActionListener {
      * this one but it will get all pages and load the model as needed.
      */
     private void executeRequest1() {
+	proxy.setKeyword(lastKeyword);
+	proxy.setPage(1);
 	final java.util.Timer timer = new java.util.Timer();
 
 	TimerTask task = new TimerTask() {
 		public void run() {
+		    try {
+			RequestScheduler.getDefault().acquire(proxy.getPage() == 1 ?
+			    RequestScheduler.INTERACTIVE : RequestScheduler.PREFETCH);
+		    } catch (InterruptedException ex) {
+			timer.cancel();
+			return;
+		    }
 		    if (proxy.executeRequest()) {
+			ReviewStore.getDefault().strip(proxy.getDetails());
 			Runnable runnable;
 			if (proxy.getNumberOfPages() > 0) {
 			    // Must update the UI on an event dispatch thread
@@ -124,7 +189,7 @@ public class RequestHandler implements ActionListener {
 		    }
 		}
 	    };
-	timer.schedule(task, 0L, 1150L);
+	timer.schedule(task, 0L, RequestScheduler.getDefault().getInterval());
     }
 
 
@@ -132,9 +197,18 @@ public class RequestHandler implements ActionListener {
      * This version uses a Swing Timer.
      */
     private void executeRequest2() {
-	timer = new javax.swing.Timer(1150, new ActionListener() {
+	proxy.setKeyword(lastKeyword);
+	proxy.setPage(1);
+	final RequestScheduler scheduler = RequestScheduler.getDefault();
+	timer = new javax.swing.Timer((int)scheduler.getInterval(), new ActionListener() {
 		public void actionPerformed(ActionEvent evt) {
+		    if (!scheduler.tryAcquire(proxy.getPage() == 1 ?
+			    RequestScheduler.INTERACTIVE : RequestScheduler.PREFETCH)) {
+			// Try again on the next tick
+			return;
+		    }
 		    if (proxy.executeRequest()) {
+			ReviewStore.getDefault().strip(proxy.getDetails());
 			if (proxy.getNumberOfPages() > 0) {
 			    if (proxy.getPage() == 1) {
 				model.setDetails(proxy.getDetails());
@@ -158,5 +232,230 @@ public class RequestHandler implements ActionListener {
 	    });
 	timer.start();
     }
+
+    /**
+     * Fetches the pages on a background thread. The results are added to
+     * the model in batches by the UpdateCoalescer, which also slows the
+     * fetching down if the model can't keep up. A new search cancels the
+     * task of the previous one and the results of any request which it
+     * had already sent are dropped. Pages which are in the SearchCache
+     * are added at once without a request.
+     */
+    private void executeRequest3() {
+	final int generation = coalescer.reset();
+	final String keyword = ui.getKeyword();
+	final String mode = ui.getMode();
+
+	if (searchTask != null) {
+	    searchTask.cancel();
+	}
+	searchTask = new Task("search", Task.HIGH) {
+		protected Object construct() throws InterruptedException {
+		    fetchPages(keyword, mode, generation);
+		    return null;
+		}
+	    };
+	searchTask.start();
+    }
+
+    private void fetchPages(String keyword, String mode, int generation) 
+	throws InterruptedException {
+
+	int page = 1;
+	int pages = 1;
+
+	while (page <= pages && coalescer.isCurrent(generation)) {
+	    // The first page is what the user is waiting for
+	    SearchCache.Page result = fetchPage(keyword, mode, null, page, page == 1 ?
+		RequestScheduler.INTERACTIVE : RequestScheduler.PREFETCH, generation);
+	    if (result == null) {
+		coalescer.finish(generation, "Error retrieving results");
+		return;
+	    }
+	    Details[] details = result.getDetails();
+	    pages = result.getPageCount();
+
+	    if (pages == 0) {
+		coalescer.finish(generation, "No results retrieved");
+		return;
+	    }
+	    if (!coalescer.add(generation, details)) {
+		return;
+	    }
+	    page++;
+	}
+    }
+
+    /**
+     * Fetches only the first page and gives the model a row for every
+     * result. The other pages are fetched by the LazyResults as they're
+     * scrolled into view, so the quota is only spent on the pages which
+     * are looked at. Used when the <code>jamazon.search.lazy</code> system
+     * property is set.
+     */
+    private void executeRequest4() {
+	final int generation = coalescer.reset();
+	final String keyword = ui.getKeyword();
+	final String mode = ui.getMode();
+
+	if (searchTask != null) {
+	    searchTask.cancel();
+	}
+	searchTask = new Task("search", Task.HIGH) {
+		protected Object construct() throws InterruptedException {
+		    return fetchPage(keyword, mode, null, 1, RequestScheduler.INTERACTIVE,
+				     generation);
+		}
+
+		protected void finished() {
+		    if (!coalescer.isCurrent(generation)) {
+			return;
+		    }
+		    SearchCache.Page first = (SearchCache.Page)get();
+		    if (first == null) {
+			// Don't leave the results of the previous search
+			model.setDetails(new Details[0]);
+			setStatusMessage("Error retrieving results");
+			return;
+		    }
+		    Details[] details = first.getDetails();
+		    if (first.getPageCount() == 0 || details == null || details.length == 0) {
+			model.setDetails(new Details[0]);
+			setStatusMessage("No results retrieved");
+			return;
+		    }
+
+		    // Amazon only returns a limited number of pages
+		    int rows = first.getPageCount() * details.length;
+		    if (first.getResultCount() > 0) {
+			rows = Math.min(rows, first.getResultCount());
+		    }
+		    LazyResults.Loader loader = new LazyResults.Loader() {
+			    public Details[] loadPage(int page, int lane) 
+				throws InterruptedException {
+				SearchCache.Page result = fetchPage(keyword, mode, null, page,
+								    lane, generation);
+				return (result != null ? result.getDetails() : null);
+			    }
+			};
+		    model.setLazyResults(new LazyResults(loader, rows, details));
+		    setStatusMessage(model.getRowCount() + " results");
+		}
+	    };
+	searchTask.start();
+    }
+
+    /**
+     * Keeps only the best <code>jamazon.search.top</code> results by the
+     * column which the table is sorted by, or the cheapest if it isn't
+     * sorted. The pages are fetched one after another and each is merged
+     * into a TopResults, which holds no more than the best results. The
+     * search is sent with the Amazon sort for the column if there is one,
+     * so the fetching usually stops after a page or two.
+     */
+    private void executeRequest5() {
+	final int generation = coalescer.reset();
+	final String keyword = ui.getKeyword();
+	final String mode = ui.getMode();
+
+	int column = model.getColumn();
+	boolean ascending = model.isAscending();
+	if (column < 0 || column == DetailsTableModel.DetailsColumnModel.IDX_IMAGE) {
+	    column = DetailsTableModel.DetailsColumnModel.IDX_AMAZ_PRICE;
+	    ascending = true;
+	}
+	final String sort = TopResults.getSort(column, ascending);
+	final TopResults top = new TopResults(TOP, column, ascending, sort != null);
+
+	if (searchTask != null) {
+	    searchTask.cancel();
+	}
+	searchTask = new Task("search", Task.HIGH) {
+		protected Object construct() throws InterruptedException {
+		    int page = 1;
+		    int pages = 1;
+		    while (page <= pages && !isCancelled()) {
+			SearchCache.Page result = fetchPage(keyword, mode, sort, page, 
+			    page == 1 ? RequestScheduler.INTERACTIVE : 
+			    RequestScheduler.PREFETCH, generation);
+			if (result == null) {
+			    return null;
+			}
+			pages = result.getPageCount();
+			boolean complete = top.add(result.getDetails());
+			publish(top.getDetails());
+			if (complete) {
+			    Metrics.add("search.top.pagesSkipped", pages - page);
+			    break;
+			}
+			page++;
+		    }
+		    return top;
+		}
+
+		protected void process(List chunks) {
+		    if (coalescer.isCurrent(generation)) {
+			model.setDetails((Details[])chunks.get(chunks.size() - 1));
+			setStatusMessage("Best " + model.getRowCount() + " of " + 
+					 top.getCount() + " results so far...");
+		    }
+		}
+
+		protected void finished() {
+		    if (!coalescer.isCurrent(generation)) {
+			return;
+		    }
+		    if (top.getCount() == 0) {
+			// Don't leave the results of the previous search
+			model.setDetails(new Details[0]);
+		    }
+		    if (get() == null) {
+			setStatusMessage("Error retrieving results");
+		    } else if (top.getCount() == 0) {
+			setStatusMessage("No results retrieved");
+		    } else {
+			setStatusMessage("Best " + model.getRowCount() + " of " + 
+					 top.getCount() + " results");
+		    }
+		}
+	    };
+	searchTask.start();
+    }
+
+    /**
+     * Returns a page of the search from the cache or sends a request for
+     * it. Each request has its own AmazonProxy so that a request which is
+     * waiting for the quota doesn't hold up one in a more urgent lane.
+     *
+     * @param sort the order of the results or null
+     * @param lane the RequestScheduler lane for the request
+     * @return the page or null if the request failed or the search has
+     *         been replaced by another
+     */
+    private SearchCache.Page fetchPage(String keyword, String mode, String sort,
+				       int page, int lane, int generation) 
+	throws InterruptedException {
+
+	SearchCache.Page cached = cache.get(mode, keyword, sort, page);
+	if (cached != null) {
+	    return cached;
+	}
+	RequestScheduler.getDefault().acquire(lane);
+	if (!coalescer.isCurrent(generation)) {
+	    // Don't send requests for a keyword which has been 
+	    // typed over
+	    return null;
+	}
+	AmazonProxy request = new AmazonProxy();
+	request.setKeyword(keyword);
+	request.setMode(mode);
+	request.setPage(page);
+	request.setSort(sort);
+	if (!request.executeRequest()) {
+	    return null;
+	}
+	ReviewStore.getDefault().strip(request.getDetails());
+	return cache.put(mode, keyword, sort, page, request.getDetails(),
+			 request.getNumberOfPages(), request.getNumberOfResults());
+    }
 }
-	
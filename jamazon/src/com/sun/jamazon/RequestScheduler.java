@@ -0,0 +1,196 @@
+/*
+ * Copyright (c) 2018 Oracle and/or its affiliates. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Distribution License v. 1.0, which is available at
+ * http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+
+package com.sun.jamazon;
+
+import java.util.LinkedList;
+
+/**
+ * Keeps the requests to Amazon within the quota. Every request must call
+ * <code>acquire</code> before it is sent. The permits come from a token
+ * bucket which gains a token every <code>jamazon.quota.interval</code>
+ * milliseconds and holds at most <code>jamazon.quota.burst</code> tokens.
+ * <p>
+ * The requests wait in lanes. When a token is available it goes to the
+ * request which has waited longest in the most urgent lane, so the first
+ * page of a search in the window goes ahead of the following pages, which
+ * go ahead of bulk work such as the price watch.
+ * <p>
+ * The client shares one scheduler so all of the requests in the process
+ * are counted together.
+ */
+public class RequestScheduler {
+
+    // Amazon allows one request a second. The margin covers the jitter of
+    // the network, which can bring requests sent a second apart closer
+    // together by the time they arrive.
+    private static final int DEFAULT_INTERVAL = 1100;
+    // The searches which are answered locally don't use the quota
+    private static final int LOCAL_INTERVAL = 1;
+    private static final int DEFAULT_BURST = 1;
+
+    // The lanes, least urgent first
+    public static final int BULK = 0;
+    public static final int PREFETCH = 1;
+    public static final int INTERACTIVE = 2;
+
+    private static final String[] LANE_NAMES = {
+	"bulk", "prefetch", "interactive"
+    };
+
+    private static RequestScheduler defaultScheduler;
+
+    private long interval;
+    private int burst;
+
+    private double tokens;
+    private long lastRefill;
+
+    private LinkedList[] lanes = new LinkedList[INTERACTIVE + 1];
+    private int waiting;
+
+    /**
+     * @param interval the time in milliseconds for a token to be added
+     * @param burst the most tokens which the bucket can hold
+     */
+    public RequestScheduler(long interval, int burst) {
+	this.interval = Math.max(1, interval);
+	this.burst = Math.max(1, burst);
+	for (int i = 0; i < lanes.length; i++) {
+	    lanes[i] = new LinkedList();
+	}
+	// Start full
+	tokens = this.burst;
+	lastRefill = System.currentTimeMillis();
+    }
+
+    /**
+     * Returns the scheduler which is shared by the client. If the searches
+     * are answered by a catalog or an archive the requests are hardly
+     * spaced at all.
+     */
+    public static synchronized RequestScheduler getDefault() {
+	if (defaultScheduler == null) {
+	    int interval = (AmazonProxy.isLocal() ? LOCAL_INTERVAL : DEFAULT_INTERVAL);
+	    defaultScheduler = new RequestScheduler(
+		Integer.getInteger("jamazon.quota.interval", interval).intValue(),
+		Integer.getInteger("jamazon.quota.burst", DEFAULT_BURST).intValue());
+	}
+	return defaultScheduler;
+    }
+
+    /**
+     * Returns the time in milliseconds between tokens.
+     */
+    public long getInterval() {
+	return interval;
+    }
+
+    /**
+     * Waits until a request in the lane may be sent.
+     *
+     * @param lane BULK, PREFETCH or INTERACTIVE
+     * @throws InterruptedException if the thread is interrupted while
+     *         waiting. The request must not be sent.
+     */
+    public synchronized void acquire(int lane) throws InterruptedException {
+	lane = Math.max(BULK, Math.min(INTERACTIVE, lane));
+	long start = System.currentTimeMillis();
+	Ticket ticket = new Ticket();
+	lanes[lane].addLast(ticket);
+	waiting++;
+	Metrics.max("quota.maxWaiting", waiting);
+	try {
+	    while (true) {
+		dispatch();
+		if (ticket.granted) {
+		    break;
+		}
+		long wait = (long)Math.ceil((1 - tokens) * interval);
+		wait(Math.max(1, wait));
+	    }
+	} catch (InterruptedException ex) {
+	    if (ticket.granted) {
+		// Granted at the same time, so give the token back. The
+		// bucket may have been refilled since.
+		tokens = Math.min(burst, tokens + 1);
+	    } else {
+		lanes[lane].remove(ticket);
+		waiting--;
+	    }
+	    notifyAll();
+	    throw ex;
+	}
+	Metrics.increment("quota.requests");
+	Metrics.add("quota.wait." + LANE_NAMES[lane], System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Takes a token if one is available and no request is waiting in the
+     * lane or a more urgent one. Doesn't block, so it may be called on the
+     * event dispatch thread.
+     *
+     * @return true if the request may be sent
+     */
+    public synchronized boolean tryAcquire(int lane) {
+	lane = Math.max(BULK, Math.min(INTERACTIVE, lane));
+	refill();
+	for (int i = lane; i < lanes.length; i++) {
+	    if (!lanes[i].isEmpty()) {
+		return false;
+	    }
+	}
+	if (tokens < 1) {
+	    return false;
+	}
+	tokens--;
+	Metrics.increment("quota.requests");
+	return true;
+    }
+
+    /**
+     * Returns the number of requests which are waiting for a token.
+     */
+    public synchronized int getWaitingCount() {
+	return waiting;
+    }
+
+    /**
+     * Hands out the available tokens in order of urgency.
+     */
+    private void dispatch() {
+	refill();
+	boolean granted = false;
+	for (int i = lanes.length - 1; i >= 0 && tokens >= 1; i--) {
+	    while (!lanes[i].isEmpty() && tokens >= 1) {
+		Ticket ticket = (Ticket)lanes[i].removeFirst();
+		ticket.granted = true;
+		waiting--;
+		tokens--;
+		granted = true;
+	    }
+	}
+	if (granted) {
+	    notifyAll();
+	}
+    }
+
+    private void refill() {
+	long now = System.currentTimeMillis();
+	if (now > lastRefill) {
+	    tokens = Math.min(burst, tokens + (double)(now - lastRefill) / interval);
+	    lastRefill = now;
+	}
+    }
+
+    private static class Ticket {
+	boolean granted;
+    }
+}
@@ -0,0 +1,391 @@
+/*
+ * Copyright (c) 2018 Oracle and/or its affiliates. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Distribution License v. 1.0, which is available at
+ * http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+
+package com.sun.jamazon;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import myamazonclient.AmazonClientGenClient.Details;
+import myamazonclient.AmazonClientGenClient.Reviews;
+import myamazonclient.AmazonClientGenClient.CustomerReview;
+
+/**
+ * Holds the customer reviews of the products away from the Details. The
+ * reviews are most of the size of a heavy result but are only displayed
+ * for the selected product, so they are taken out of the Details as the
+ * results arrive and kept compressed in a file keyed by the ASIN. They are
+ * read back when a detail page is built.
+ * <p>
+ * Only the index is kept on the heap. If the file can't be created then
+ * the compressed reviews are kept in memory. A product which is fetched
+ * again replaces its reviews. The compressed reviews are limited by the
+ * <code>jamazon.reviews.budget</code> system property (in bytes) and the
+ * reviews of the products which were used longest ago are dropped. The
+ * file is compacted when more than half of it has been dropped.
+ *
+ * @see DetailPages
+ */
+public class ReviewStore {
+
+    private static final int DEFAULT_BUDGET = 32 * 1024 * 1024;
+
+    // Don't bother compacting a small file
+    private static final int MIN_COMPACT = 1024 * 1024;
+
+    private static ReviewStore defaultStore;
+
+    // String asin -> Entry in access order
+    private Map entries = new LinkedHashMap(64, 0.75f, true);
+    private int budget;
+    // The compressed bytes of the entries
+    private long size;
+
+    private RandomAccessFile segment;
+    private File segmentFile;
+    private long segmentEnd;
+    // The bytes of the segment which no entry uses
+    private long unused;
+    private boolean spill = true;
+
+    private Deflater deflater = new Deflater();
+    private Inflater inflater = new Inflater();
+    private byte[] buffer = new byte[8192];
+
+    public ReviewStore() {
+	this(Integer.getInteger("jamazon.reviews.budget", DEFAULT_BUDGET).intValue());
+    }
+
+    /**
+     * @param budget the approximate number of compressed bytes to keep
+     */
+    public ReviewStore(int budget) {
+	this.budget = budget;
+    }
+
+    /**
+     * Returns the store which is shared by the client.
+     */
+    public static synchronized ReviewStore getDefault() {
+	if (defaultStore == null) {
+	    defaultStore = new ReviewStore();
+	}
+	return defaultStore;
+    }
+
+    /**
+     * Returns the customer reviews of the product. They are taken from the
+     * Details if they are still there, otherwise from the default store.
+     *
+     * @return the reviews or null if there aren't any
+     */
+    public static CustomerReview[] getCustomerReviews(Details details) {
+	Reviews reviews = details.getReviews();
+	if (reviews == null) {
+	    return null;
+	}
+	CustomerReview[] crevs = reviews.getCustomerReviews();
+	if (crevs == null && details.getAsin() != null) {
+	    crevs = getDefault().get(details.getAsin());
+	}
+	return crevs;
+    }
+
+    /**
+     * Moves the customer reviews of the results into the store. The
+     * average rating and the number of reviews are left in the Details.
+     */
+    public synchronized void strip(Details[] details) {
+	for (int i = 0; details != null && i < details.length; i++) {
+	    if (details[i] == null || details[i].getAsin() == null) {
+		continue;
+	    }
+	    Reviews reviews = details[i].getReviews();
+	    if (reviews == null || reviews.getCustomerReviews() == null) {
+		continue;
+	    }
+	    try {
+		put(details[i].getAsin(), reviews.getCustomerReviews());
+		reviews.setCustomerReviews(null);
+	    } catch (IOException ex) {
+		// Leave the reviews in the Details
+		ex.printStackTrace();
+	    }
+	}
+    }
+
+    /**
+     * Returns the reviews of the product or null if they aren't in the
+     * store.
+     */
+    public synchronized CustomerReview[] get(String asin) {
+	Entry entry = (Entry)entries.get(asin);
+	if (entry == null) {
+	    return null;
+	}
+	try {
+	    byte[] data = entry.data;
+	    if (data == null) {
+		data = new byte[entry.length];
+		segment.seek(entry.offset);
+		segment.readFully(data);
+	    }
+	    return decode(inflate(data, entry.size));
+	} catch (Exception ex) {
+	    ex.printStackTrace();
+	    return null;
+	}
+    }
+
+    /**
+     * Removes all the reviews and deletes the file.
+     */
+    public synchronized void dispose() {
+	entries.clear();
+	if (segment != null) {
+	    try {
+		segment.close();
+	    } catch (IOException ex) {
+		// drop through
+	    }
+	    segmentFile.delete();
+	    segment = null;
+	}
+	spill = false;
+	segmentEnd = 0L;
+	unused = 0L;
+	size = 0L;
+    }
+
+    private void put(String asin, CustomerReview[] crevs) throws IOException {
+	byte[] raw = encode(crevs);
+	byte[] data = deflate(raw);
+	Metrics.add("reviews.bytes", raw.length);
+	Metrics.add("reviews.compressedBytes", data.length);
+
+	Entry entry = new Entry(raw.length, data.length);
+	Entry old = (Entry)entries.remove(asin);
+	if (old != null) {
+	    remove(old);
+	}
+	if (openSegment()) {
+	    try {
+		if (old != null && old.data == null && data.length <= old.length) {
+		    // The new reviews fit where the old ones were
+		    entry.offset = old.offset;
+		    unused -= data.length;
+		} else {
+		    entry.offset = segmentEnd;
+		    segmentEnd += data.length;
+		}
+		segment.seek(entry.offset);
+		segment.write(data);
+		data = null;
+	    } catch (IOException ex) {
+		// Keep the rest in memory
+		ex.printStackTrace();
+		spill = false;
+	    }
+	}
+	entry.data = data;
+	entries.put(asin, entry);
+	size += entry.length;
+
+	// Drop the reviews which were used longest ago
+	Iterator iter = entries.values().iterator();
+	while (size > budget && iter.hasNext()) {
+	    Entry eldest = (Entry)iter.next();
+	    if (eldest == entry) {
+		break;
+	    }
+	    iter.remove();
+	    remove(eldest);
+	    Metrics.increment("reviews.evicted");
+	}
+
+	if (segment != null && unused > MIN_COMPACT && unused > segmentEnd / 2) {
+	    compact();
+	}
+    }
+
+    /**
+     * Accounts for an entry which has been taken out of the map.
+     */
+    private void remove(Entry entry) {
+	size -= entry.length;
+	if (entry.data == null) {
+	    unused += entry.length;
+	}
+    }
+
+    /**
+     * Copies the reviews which are still used to a new file.
+     */
+    private void compact() {
+	File newFile = null;
+	RandomAccessFile newSegment = null;
+	try {
+	    newFile = File.createTempFile("jamazon", ".rev");
+	    newFile.deleteOnExit();
+	    newSegment = new RandomAccessFile(newFile, "rw");
+
+	    // Copy in the order of the old file so it is read sequentially
+	    List onDisk = new ArrayList();
+	    Iterator iter = entries.values().iterator();
+	    while (iter.hasNext()) {
+		Entry entry = (Entry)iter.next();
+		if (entry.data == null) {
+		    onDisk.add(entry);
+		}
+	    }
+	    Collections.sort(onDisk, new Comparator() {
+		    public int compare(Object o1, Object o2) {
+			long offset1 = ((Entry)o1).offset;
+			long offset2 = ((Entry)o2).offset;
+			return (offset1 < offset2 ? -1 : (offset1 == offset2 ? 0 : 1));
+		    }
+		});
+
+	    long[] offsets = new long[onDisk.size()];
+	    long end = 0L;
+	    for (int i = 0; i < onDisk.size(); i++) {
+		Entry entry = (Entry)onDisk.get(i);
+		byte[] data = new byte[entry.length];
+		segment.seek(entry.offset);
+		segment.readFully(data);
+		newSegment.write(data);
+		offsets[i] = end;
+		end += data.length;
+	    }
+
+	    // Only switch once everything has been copied
+	    for (int i = 0; i < onDisk.size(); i++) {
+		((Entry)onDisk.get(i)).offset = offsets[i];
+	    }
+	    segment.close();
+	    segmentFile.delete();
+	    segment = newSegment;
+	    segmentFile = newFile;
+	    segmentEnd = end;
+	    unused = 0L;
+	    Metrics.increment("reviews.compactions");
+	} catch (IOException ex) {
+	    // Carry on with the old file
+	    ex.printStackTrace();
+	    if (newSegment != null) {
+		try {
+		    newSegment.close();
+		} catch (IOException ex2) {
+		    // drop through
+		}
+		newFile.delete();
+	    }
+	}
+    }
+
+    private boolean openSegment() {
+	if (!spill) {
+	    return false;
+	}
+	if (segment == null) {
+	    try {
+		segmentFile = File.createTempFile("jamazon", ".rev");
+		segmentFile.deleteOnExit();
+		segment = new RandomAccessFile(segmentFile, "rw");
+	    } catch (Exception ex) {
+		// May be running in a sandbox
+		ex.printStackTrace();
+		spill = false;
+	    }
+	}
+	return segment != null;
+    }
+
+    private byte[] deflate(byte[] raw) {
+	deflater.reset();
+	deflater.setInput(raw);
+	deflater.finish();
+	ByteArrayOutputStream bytes = new ByteArrayOutputStream(raw.length / 3 + 16);
+	while (!deflater.finished()) {
+	    int count = deflater.deflate(buffer);
+	    bytes.write(buffer, 0, count);
+	}
+	return bytes.toByteArray();
+    }
+
+    private byte[] inflate(byte[] data, int size) throws DataFormatException {
+	inflater.reset();
+	inflater.setInput(data);
+	byte[] raw = new byte[size];
+	int offset = 0;
+	while (offset < size && !inflater.finished()) {
+	    int count = inflater.inflate(raw, offset, size - offset);
+	    if (count == 0 && inflater.needsInput()) {
+		throw new DataFormatException("Truncated reviews");
+	    }
+	    offset += count;
+	}
+	return raw;
+    }
+
+    private static byte[] encode(CustomerReview[] crevs) throws IOException {
+	ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+	DataOutputStream out = new DataOutputStream(bytes);
+	out.writeInt(crevs.length);
+	for (int i = 0; i < crevs.length; i++) {
+	    DetailsStore.writeString(out, crevs[i].getRating());
+	    DetailsStore.writeString(out, crevs[i].getSummary());
+	    DetailsStore.writeString(out, crevs[i].getComment());
+	}
+	out.flush();
+	return bytes.toByteArray();
+    }
+
+    private static CustomerReview[] decode(byte[] data) throws IOException {
+	DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+	CustomerReview[] crevs = new CustomerReview[in.readInt()];
+	for (int i = 0; i < crevs.length; i++) {
+	    crevs[i] = new CustomerReview();
+	    crevs[i].setRating(DetailsStore.readString(in));
+	    crevs[i].setSummary(DetailsStore.readString(in));
+	    crevs[i].setComment(DetailsStore.readString(in));
+	}
+	return crevs;
+    }
+
+    private static class Entry {
+	long offset;
+	int size;	// uncompressed
+	int length;	// compressed
+	byte[] data;	// null if it is in the segment
+
+	Entry(int size, int length) {
+	    this.size = size;
+	    this.length = length;
+	}
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2018 Oracle and/or its affiliates. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Distribution License v. 1.0, which is available at
+ * http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+
+package com.sun.jamazon;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import myamazonclient.AmazonClientGenClient.Details;
+
+/**
+ * Keeps the most recent pages of search results so that repeating a search,
+ * or typing back to an earlier keyword, doesn't send the requests again.
+ * The number of pages kept is set with the <code>jamazon.search.cache</code>
+ * system property.
+ */
+public class SearchCache {
+
+    private static final int DEFAULT_SIZE = 64;
+
+    private Map pages;
+
+    public SearchCache() {
+	this(Integer.getInteger("jamazon.search.cache", DEFAULT_SIZE).intValue());
+    }
+
+    public SearchCache(final int size) {
+	pages = new LinkedHashMap(size, 0.75f, true) {
+		protected boolean removeEldestEntry(Map.Entry eldest) {
+		    return size() > size;
+		}
+	    };
+    }
+
+    /**
+     * Returns the cached page or null.
+     */
+    public synchronized Page get(String mode, String keyword, String sort, int page) {
+	Page result = (Page)pages.get(getKey(mode, keyword, sort, page));
+	Metrics.increment(result != null ? "search.cache.hits" : "search.cache.misses");
+	return result;
+    }
+
+    /**
+     * Adds a page of results.
+     *
+     * @param sort the order of the results or null
+     * @param resultCount the number of results of the search
+     * @return the cached page
+     */
+    public synchronized Page put(String mode, String keyword, String sort, int page,
+				 Details[] details, int pageCount, int resultCount) {
+	Page result = new Page(details, pageCount, resultCount);
+	pages.put(getKey(mode, keyword, sort, page), result);
+	return result;
+    }
+
+    public synchronized void clear() {
+	pages.clear();
+    }
+
+    private static String getKey(String mode, String keyword, String sort, int page) {
+	// Amazon ignores the case and the spacing of the keywords
+	return mode + "\t" + sort + "\t" + page + "\t" + keyword.trim().toLowerCase();
+    }
+
+    /**
+     * A page of results and the number of pages and results in the search.
+     */
+    public static class Page {
+	private Details[] details;
+	private int pageCount;
+	private int resultCount;
+
+	Page(Details[] details, int pageCount, int resultCount) {
+	    this.details = details;
+	    this.pageCount = pageCount;
+	    this.resultCount = resultCount;
+	}
+
+	public Details[] getDetails() {
+	    return details;
+	}
+
+	public int getPageCount() {
+	    return pageCount;
+	}
+
+	public int getResultCount() {
+	    return resultCount;
+	}
+    }
+}
@@ -0,0 +1,480 @@
+/*
+ * Copyright (c) 2018 Oracle and/or its affiliates. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Distribution License v. 1.0, which is available at
+ * http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+
+package com.sun.jamazon;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+import java.nio.ByteBuffer;
+
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import java.rmi.RemoteException;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+import myamazonclient.AmazonClientGenClient.AmazonSearchPort;
+import myamazonclient.AmazonClientGenClient.KeywordRequest;
+import myamazonclient.AmazonClientGenClient.ProductInfo;
+
+/**
+ * A gateway which is shared by the clients on a network so that each
+ * search is only sent to Amazon once. Run it with
+ * <pre>
+ *   java com.sun.jamazon.SearchGateway [port]
+ * </pre>
+ * and start the clients with <code>-Djamazon.gateway=host:port</code>.
+ * <p>
+ * The responses are kept in a cache directory, which is set with the
+ * <code>jamazon.gateway.dir</code> system property and is in the home
+ * directory of the user by default, for
+ * <code>jamazon.gateway.ttl</code> seconds. Cached responses are sent
+ * straight from the file to the socket. When several clients ask for the
+ * same search at once only one request is sent to Amazon and the others
+ * wait for its response. The requests to Amazon from all of the clients
+ * are limited by a RequestScheduler to one every
+ * <code>jamazon.gateway.interval</code> milliseconds, with the first
+ * pages of searches ahead of the following pages.
+ * <p>
+ * The responses are sent in the compressed form used by SoapArchive,
+ * which only holds strings. The gateway listens on all of the interfaces
+ * unless <code>jamazon.gateway.bind</code> names the address of one.
+ */
+public class SearchGateway {
+
+    public static final int DEFAULT_PORT = 8086;
+
+    private static final int DEFAULT_TTL = 60 * 60;
+    // A little over Amazon's second, as in RequestScheduler
+    private static final int DEFAULT_INTERVAL = 1100;
+
+    // Response status
+    private static final int OK = 0;
+    private static final int ERROR = 1;
+
+    private AmazonSearchPort upstream;
+    private File cacheDir;
+    private long ttl;
+    private RequestScheduler scheduler;
+
+    // key -> Fetch for the searches which are being sent to Amazon
+    private Map fetching = new HashMap();
+
+    public SearchGateway(AmazonSearchPort upstream, File cacheDir) throws IOException {
+	this.upstream = upstream;
+	this.cacheDir = cacheDir;
+	if (!cacheDir.isDirectory() && !cacheDir.mkdirs()) {
+	    throw new IOException("Unable to create " + cacheDir);
+	}
+	ttl = Integer.getInteger("jamazon.gateway.ttl", DEFAULT_TTL).intValue() * 1000L;
+	// All of the clients share the gateway's quota
+	scheduler = new RequestScheduler(
+	    Integer.getInteger("jamazon.gateway.interval", DEFAULT_INTERVAL).intValue(),
+	    Integer.getInteger("jamazon.quota.burst", 1).intValue());
+    }
+
+    /**
+     * Accepts connections until the process is stopped. Each connection is
+     * handled on its own thread.
+     */
+    public void serve(int port) throws IOException {
+	ServerSocketChannel server = ServerSocketChannel.open();
+	server.socket().setReuseAddress(true);
+	String bind = System.getProperty("jamazon.gateway.bind");
+	server.socket().bind(bind != null ? new InetSocketAddress(bind, port) :
+			     new InetSocketAddress(port));
+	System.out.println("Gateway listening on port " + port +
+			   ", cache in " + cacheDir.getAbsolutePath());
+	while (true) {
+	    final SocketChannel channel = server.accept();
+	    Thread thread = new Thread(new Runnable() {
+		    public void run() {
+			handle(channel);
+		    }
+		}, "JAmazon gateway " + channel.socket().getInetAddress());
+	    thread.setDaemon(true);
+	    thread.start();
+	}
+    }
+
+    /**
+     * Answers the requests on a connection until the client closes it.
+     */
+    private void handle(SocketChannel channel) {
+	try {
+	    DataInputStream in = new DataInputStream(
+		new BufferedInputStream(channel.socket().getInputStream()));
+	    while (true) {
+		KeywordRequest request;
+		try {
+		    request = readRequest(in);
+		} catch (IOException ex) {
+		    // Closed by the client
+		    break;
+		}
+		Metrics.increment("gateway.requests");
+		File file;
+		try {
+		    file = getResponse(request);
+		} catch (Exception ex) {
+		    sendError(channel, ex.toString());
+		    continue;
+		}
+		// A failure while sending closes the connection
+		sendFile(channel, file);
+	    }
+	} catch (IOException ex) {
+	    System.err.println("Gateway connection failed: " + ex);
+	} finally {
+	    try {
+		channel.close();
+	    } catch (IOException ex) {
+		// ignore
+	    }
+	}
+    }
+
+    /**
+     * Returns the cache file with the response to the request, sending
+     * the request to Amazon if it isn't cached.
+     */
+    private File getResponse(KeywordRequest request) throws Exception {
+	String key = SoapArchive.getKey(request);
+	File file = new File(cacheDir, ImageService.getFileName(key));
+	if (System.currentTimeMillis() - file.lastModified() < ttl) {
+	    Metrics.increment("gateway.hits");
+	    return file;
+	}
+
+	Fetch fetch;
+	boolean owner = false;
+	synchronized (fetching) {
+	    fetch = (Fetch)fetching.get(key);
+	    if (fetch == null) {
+		fetch = new Fetch();
+		fetching.put(key, fetch);
+		owner = true;
+	    }
+	}
+
+	if (owner) {
+	    Metrics.increment("gateway.misses");
+	    try {
+		String page = request.getPage();
+		scheduler.acquire(page == null || page.equals("1") ?
+		    RequestScheduler.INTERACTIVE : RequestScheduler.PREFETCH);
+		ProductInfo info = upstream.keywordSearchRequest(request);
+		write(file, SoapArchive.encode(info));
+	    } catch (Exception ex) {
+		fetch.exception = ex;
+	    } finally {
+		synchronized (fetching) {
+		    fetching.remove(key);
+		}
+		fetch.done();
+	    }
+	} else {
+	    Metrics.increment("gateway.coalesced");
+	    fetch.waitForDone();
+	}
+
+	if (fetch.exception != null) {
+	    throw fetch.exception;
+	}
+	return file;
+    }
+
+    private void write(File file, byte[] data) throws IOException {
+	// Write to a temporary file first so a partial file is never sent
+	File temp = File.createTempFile("response", ".tmp", cacheDir);
+	try {
+	    OutputStream out = new FileOutputStream(temp);
+	    try {
+		out.write(data);
+	    } finally {
+		out.close();
+	    }
+	    file.delete();
+	    if (!temp.renameTo(file)) {
+		throw new IOException("Unable to rename " + temp + " to " + file);
+	    }
+	} finally {
+	    temp.delete();
+	}
+    }
+
+    /**
+     * Sends the response file. The contents are transferred to the socket
+     * by the file channel without being copied through the heap.
+     */
+    private static void sendFile(SocketChannel channel, File file) throws IOException {
+	FileInputStream in = new FileInputStream(file);
+	try {
+	    FileChannel fileChannel = in.getChannel();
+	    long size = fileChannel.size();
+
+	    ByteBuffer header = ByteBuffer.allocate(8);
+	    header.putInt(OK);
+	    header.putInt((int)size);
+	    header.flip();
+	    while (header.hasRemaining()) {
+		channel.write(header);
+	    }
+
+	    long position = 0;
+	    while (position < size) {
+		position += fileChannel.transferTo(position, size - position, channel);
+	    }
+	} finally {
+	    in.close();
+	}
+    }
+
+    private static void sendError(SocketChannel channel, String message) throws IOException {
+	byte[] text = message.getBytes("UTF-8");
+	ByteBuffer buffer = ByteBuffer.allocate(8 + text.length);
+	buffer.putInt(ERROR);
+	buffer.putInt(text.length);
+	buffer.put(text);
+	buffer.flip();
+	while (buffer.hasRemaining()) {
+	    channel.write(buffer);
+	}
+    }
+
+    private static void writeRequest(DataOutputStream out, KeywordRequest request)
+	throws IOException {
+
+	writeString(out, request.getKeyword());
+	writeString(out, request.getPage());
+	writeString(out, request.getMode());
+	writeString(out, request.getTag());
+	writeString(out, request.getType());
+	writeString(out, request.getDevtag());
+	writeString(out, request.getSort());
+	writeString(out, request.getLocale());
+	out.flush();
+    }
+
+    private static KeywordRequest readRequest(DataInputStream in) throws IOException {
+	KeywordRequest request = new KeywordRequest();
+	request.setKeyword(readString(in));
+	request.setPage(readString(in));
+	request.setMode(readString(in));
+	request.setTag(readString(in));
+	request.setType(readString(in));
+	request.setDevtag(readString(in));
+	request.setSort(readString(in));
+	request.setLocale(readString(in));
+	return request;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+	out.writeBoolean(value != null);
+	if (value != null) {
+	    out.writeUTF(value);
+	}
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+	return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    /**
+     * Creates a port which sends the keyword searches to a gateway.
+     *
+     * @param address the host and port of the gateway, e.g. "server:8086"
+     */
+    public static AmazonSearchPort createClientPort(String address) {
+	String host = address;
+	int port = DEFAULT_PORT;
+	int colon = address.lastIndexOf(':');
+	if (colon != -1) {
+	    host = address.substring(0, colon);
+	    port = Integer.parseInt(address.substring(colon + 1));
+	}
+	return SoapArchive.createProxy(new Client(host, port));
+    }
+
+    /**
+     * The client side of the connections to the gateway. Each request
+     * takes a connection of its own, so a prefetch which is waiting for
+     * the gateway's quota doesn't hold up an interactive search. The
+     * connections are kept open between requests and opened again if
+     * they fail.
+     */
+    private static class Client implements InvocationHandler {
+	// The number of idle connections which are kept open
+	private static final int MAX_IDLE = 4;
+
+	private String host;
+	private int port;
+
+	// Connections which aren't being used
+	private LinkedList idle = new LinkedList();
+
+	Client(String host, int port) {
+	    this.host = host;
+	    this.port = port;
+	}
+
+	public Object invoke(Object proxy, Method method, Object[] args)
+	    throws Throwable {
+
+	    if (!SoapArchive.isKeywordSearch(method)) {
+		throw new RemoteException(method.getName() +
+					  " isn't supported by the gateway");
+	    }
+	    KeywordRequest request = (KeywordRequest)args[0];
+	    Connection connection = getConnection();
+	    try {
+		ProductInfo info = connection.search(request);
+		release(connection);
+		return info;
+	    } catch (RemoteException ex) {
+		// Reported by the gateway
+		release(connection);
+		throw ex;
+	    } catch (IOException ex) {
+		// The gateway may have closed an idle connection so try
+		// once more on a new one
+		connection.close();
+	    }
+	    connection = new Connection();
+	    try {
+		ProductInfo info = connection.search(request);
+		release(connection);
+		return info;
+	    } catch (RemoteException ex) {
+		release(connection);
+		throw ex;
+	    } catch (IOException ex) {
+		connection.close();
+		throw new RemoteException("Gateway " + host + ":" + port + " failed", ex);
+	    }
+	}
+
+	private synchronized Connection getConnection() {
+	    if (!idle.isEmpty()) {
+		return (Connection)idle.removeFirst();
+	    }
+	    return new Connection();
+	}
+
+	private void release(Connection connection) {
+	    synchronized (this) {
+		if (idle.size() < MAX_IDLE) {
+		    idle.addFirst(connection);
+		    return;
+		}
+	    }
+	    connection.close();
+	}
+
+	public String toString() {
+	    return "SearchGateway[" + host + ":" + port + "]";
+	}
+
+	/**
+	 * A connection which is used by one request at a time.
+	 */
+	private class Connection {
+	    private Socket socket;
+	    private DataInputStream in;
+	    private DataOutputStream out;
+
+	    ProductInfo search(KeywordRequest request) throws IOException {
+		if (socket == null) {
+		    socket = new Socket(host, port);
+		    socket.setTcpNoDelay(true);
+		    in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		    out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		}
+		writeRequest(out, request);
+
+		int status = in.readInt();
+		byte[] data = new byte[in.readInt()];
+		in.readFully(data);
+		if (status != OK) {
+		    throw new RemoteException(new String(data, "UTF-8"));
+		}
+		return SoapArchive.decode(data);
+	    }
+
+	    void close() {
+		if (socket != null) {
+		    try {
+			socket.close();
+		    } catch (IOException ex) {
+			// ignore
+		    }
+		    socket = null;
+		}
+	    }
+	}
+    }
+
+    /**
+     * A search which is being sent to Amazon.
+     */
+    private static class Fetch {
+	private boolean done;
+	Exception exception;
+
+	synchronized void done() {
+	    done = true;
+	    notifyAll();
+	}
+
+	synchronized void waitForDone() throws InterruptedException {
+	    while (!done) {
+		wait();
+	    }
+	}
+    }
+
+    public static void main(String[] args) {
+	int port = DEFAULT_PORT;
+	if (args.length > 0) {
+	    port = Integer.parseInt(args[0]);
+	}
+	// Not in the shared temporary directory, where anyone could add the
+	// responses which are sent to the clients
+	File dir = new File(System.getProperty("jamazon.gateway.dir",
+					       System.getProperty("user.home") +
+					       File.separator + ".jamazon" +
+					       File.separator + "gateway"));
+	try {
+	    SearchGateway gateway = new SearchGateway(AmazonProxy.createServicePort(), dir);
+	    gateway.serve(port);
+	} catch (Exception ex) {
+	    ex.printStackTrace();
+	    System.exit(1);
+	}
+    }
+}
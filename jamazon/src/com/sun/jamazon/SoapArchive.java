@@ -0,0 +1,356 @@
+/*
+ * Copyright (c) 2018 Oracle and/or its affiliates. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Distribution License v. 1.0, which is available at
+ * http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+
+package com.sun.jamazon;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import java.rmi.RemoteException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import myamazonclient.AmazonClientGenClient.AmazonSearchPort;
+import myamazonclient.AmazonClientGenClient.Details;
+import myamazonclient.AmazonClientGenClient.KeywordRequest;
+import myamazonclient.AmazonClientGenClient.ProductInfo;
+
+/**
+ * An archive of keyword search requests and their responses which is used
+ * to record the web service traffic of a session and to play it back
+ * without a network.
+ * <p>
+ * The mode is selected with system properties:
+ * <pre>
+ *   jamazon.soap.record=file   records the responses from Amazon
+ *   jamazon.soap.replay=file   answers the requests from the archive
+ *   jamazon.soap.replay.timing=true   replays with the recorded delays
+ * </pre>
+ * Each record is a header with the request key and the time the request
+ * took, followed by the compressed response. The response is written as
+ * the totals and the details in the form used by DetailsStore, which only
+ * holds strings, so an archive or a response from the SearchGateway can't
+ * make the client create other objects.
+ * <p>
+ * The index from keys to records is built from the headers when the
+ * archive is opened. A request which was recorded more than once is
+ * answered with the recorded responses in turn.
+ */
+public class SoapArchive {
+
+    private static final int MAGIC = 0x4a415332; // "JAS2"
+    private static final int RESPONSE_MAGIC = 0x4a415250; // "JARP"
+
+    private RandomAccessFile file;
+
+    // key -> List of Records in the order they were recorded
+    private Map index = new HashMap();
+    // key -> Integer number of times the key has been replayed
+    private Map replayed = new HashMap();
+
+    private SoapArchive(File archive, boolean write) throws IOException {
+	file = new RandomAccessFile(archive, write ? "rw" : "r");
+	if (file.length() == 0) {
+	    file.writeInt(MAGIC);
+	} else if (file.readInt() != MAGIC) {
+	    throw new IOException(archive + " is not a SOAP archive");
+	}
+	readIndex(write);
+    }
+
+    /**
+     * Returns the port which should be used according to the system
+     * properties.
+     *
+     * @param port the port to Amazon, which isn't used when replaying.
+     *        May be null when replaying.
+     */
+    public static AmazonSearchPort createPort(AmazonSearchPort port) throws IOException {
+	String replay = System.getProperty("jamazon.soap.replay");
+	if (replay != null) {
+	    return createReplayPort(new File(replay),
+				    Boolean.getBoolean("jamazon.soap.replay.timing"));
+	}
+	String record = System.getProperty("jamazon.soap.record");
+	if (record != null && port != null) {
+	    return createRecordingPort(port, new File(record));
+	}
+	return port;
+    }
+
+    /**
+     * Returns true if the requests will be answered from an archive.
+     */
+    public static boolean isReplaying() {
+	return System.getProperty("jamazon.soap.replay") != null;
+    }
+
+    /**
+     * Creates a port which passes the requests to the port and adds the
+     * keyword search responses to the archive.
+     */
+    public static AmazonSearchPort createRecordingPort(final AmazonSearchPort port,
+						       File archive) throws IOException {
+	final SoapArchive soap = new SoapArchive(archive, true);
+	return createProxy(new InvocationHandler() {
+		public Object invoke(Object proxy, Method method, Object[] args)
+		    throws Throwable {
+
+		    long start = System.currentTimeMillis();
+		    Object result;
+		    try {
+			result = method.invoke(port, args);
+		    } catch (InvocationTargetException ex) {
+			throw ex.getTargetException();
+		    }
+		    if (isKeywordSearch(method) && result != null) {
+			try {
+			    soap.record((KeywordRequest)args[0], (ProductInfo)result,
+					System.currentTimeMillis() - start);
+			} catch (IOException ex) {
+			    ex.printStackTrace();
+			}
+		    }
+		    return result;
+		}
+	    });
+    }
+
+    /**
+     * Creates a port which answers the keyword searches from the archive.
+     *
+     * @param timing true if each response should take as long as it did
+     *        when it was recorded
+     */
+    public static AmazonSearchPort createReplayPort(File archive,
+						    final boolean timing) throws IOException {
+	final SoapArchive soap = new SoapArchive(archive, false);
+	return createProxy(new InvocationHandler() {
+		public Object invoke(Object proxy, Method method, Object[] args)
+		    throws Throwable {
+
+		    if (!isKeywordSearch(method)) {
+			throw new RemoteException(method.getName() +
+						  " can't be replayed");
+		    }
+		    KeywordRequest request = (KeywordRequest)args[0];
+		    Record record = soap.find(request);
+		    if (record == null) {
+			throw new RemoteException("Not in the archive: " + getKey(request));
+		    }
+		    ProductInfo info = soap.read(record);
+		    if (timing) {
+			Thread.sleep(record.time);
+		    }
+		    return info;
+		}
+	    });
+    }
+
+    /**
+     * Creates a port which passes the calls to the handler. The methods of
+     * Object are called on the handler itself.
+     */
+    static AmazonSearchPort createProxy(final InvocationHandler handler) {
+	return (AmazonSearchPort)Proxy.newProxyInstance(
+	    AmazonSearchPort.class.getClassLoader(),
+	    new Class[] { AmazonSearchPort.class },
+	    new InvocationHandler() {
+		public Object invoke(Object proxy, Method method, Object[] args)
+		    throws Throwable {
+		    if (method.getDeclaringClass() == Object.class) {
+			// equals, hashCode and toString
+			return method.invoke(handler, args);
+		    }
+		    return handler.invoke(proxy, method, args);
+		}
+	    });
+    }
+
+    static boolean isKeywordSearch(Method method) {
+	return method.getName().equals("keywordSearchRequest");
+    }
+
+    /**
+     * The key of a request. The developer tag and the associate tag don't
+     * change the response so they're left out.
+     */
+    static String getKey(KeywordRequest request) {
+	StringBuffer buffer = new StringBuffer();
+	buffer.append(request.getMode()).append('\t');
+	buffer.append(request.getType()).append('\t');
+	buffer.append(request.getPage()).append('\t');
+	buffer.append(request.getSort()).append('\t');
+	buffer.append(request.getKeyword());
+	return buffer.toString();
+    }
+
+    /**
+     * Reads the headers of the records. A last record which was only partly
+     * written, in its header or its response, is ignored, and is cut off
+     * if the archive is being written so the new records follow the
+     * complete ones.
+     */
+    private void readIndex(boolean write) throws IOException {
+	long length = file.length();
+	// The end of the last complete record
+	long end = file.getFilePointer();
+	try {
+	    while (end < length) {
+		String key = file.readUTF();
+		Record record = new Record();
+		record.time = file.readLong();
+		record.length = file.readInt();
+		record.offset = file.getFilePointer();
+		long next = record.offset + record.length;
+		if (record.length < 0 || next > length) {
+		    break;
+		}
+		file.seek(next);
+		addRecord(key, record);
+		end = next;
+	    }
+	} catch (EOFException ex) {
+	    // The header of the last record was only partly written
+	}
+	if (end < length) {
+	    System.err.println("Ignoring " + (length - end) +
+			       " bytes at the end of the SOAP archive");
+	    if (write) {
+		file.setLength(end);
+	    }
+	}
+    }
+
+    private void addRecord(String key, Record record) {
+	List records = (List)index.get(key);
+	if (records == null) {
+	    records = new ArrayList(1);
+	    index.put(key, records);
+	}
+	records.add(record);
+    }
+
+    private synchronized void record(KeywordRequest request, ProductInfo info,
+				     long time) throws IOException {
+	byte[] data = encode(info);
+
+	String key = getKey(request);
+	Record record = new Record();
+	record.time = time;
+	record.length = data.length;
+
+	file.seek(file.length());
+	file.writeUTF(key);
+	file.writeLong(time);
+	file.writeInt(data.length);
+	record.offset = file.getFilePointer();
+	file.write(data);
+	addRecord(key, record);
+    }
+
+    private synchronized Record find(KeywordRequest request) {
+	String key = getKey(request);
+	List records = (List)index.get(key);
+	if (records == null) {
+	    return null;
+	}
+	Integer count = (Integer)replayed.get(key);
+	int i = (count != null ? count.intValue() : 0);
+	replayed.put(key, new Integer(i + 1));
+	return (Record)records.get(Math.min(i, records.size() - 1));
+    }
+
+    private ProductInfo read(Record record) throws IOException {
+	byte[] data = new byte[record.length];
+	synchronized (this) {
+	    file.seek(record.offset);
+	    file.readFully(data);
+	}
+	return decode(data);
+    }
+
+    /**
+     * Returns the compressed form of the response.
+     */
+    static byte[] encode(ProductInfo info) throws IOException {
+	ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+	DataOutputStream out = new DataOutputStream(new GZIPOutputStream(bytes));
+	out.writeInt(RESPONSE_MAGIC);
+	DetailsStore.writeString(out, info.getTotalResults());
+	DetailsStore.writeString(out, info.getTotalPages());
+	DetailsStore.writeString(out, info.getListName());
+
+	Details[] details = info.getDetails();
+	out.writeInt(details == null ? -1 : details.length);
+	for (int i = 0; details != null && i < details.length; i++) {
+	    out.writeBoolean(details[i] != null);
+	    if (details[i] != null) {
+		DetailsStore.writeDetails(out, details[i]);
+	    }
+	}
+	out.close();
+	return bytes.toByteArray();
+    }
+
+    static ProductInfo decode(byte[] data) throws IOException {
+	DataInputStream in = new DataInputStream(
+	    new GZIPInputStream(new ByteArrayInputStream(data)));
+	try {
+	    if (in.readInt() != RESPONSE_MAGIC) {
+		throw new IOException("Not a search response");
+	    }
+	    ProductInfo info = new ProductInfo();
+	    info.setTotalResults(DetailsStore.readString(in));
+	    info.setTotalPages(DetailsStore.readString(in));
+	    info.setListName(DetailsStore.readString(in));
+
+	    int count = in.readInt();
+	    if (count >= 0) {
+		Details[] details = new Details[count];
+		for (int i = 0; i < count; i++) {
+		    if (in.readBoolean()) {
+			details[i] = DetailsStore.readDetails(in);
+		    }
+		}
+		info.setDetails(details);
+	    }
+	    return info;
+	} finally {
+	    in.close();
+	}
+    }
+
+    /**
+     * The location of a response in the archive.
+     */
+    private static class Record {
+	long offset;
+	int length;
+	long time;
+    }
+}
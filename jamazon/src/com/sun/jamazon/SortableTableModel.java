@@ -11,7 +11,6 @@
 package com.sun.jamazon;
 
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
 
@@ -43,34 +42,347 @@ import javax.swing.table.AbstractTableModel;
  */
 public abstract class SortableTableModel extends AbstractTableModel {
     
+    /**
+     * The sort criteria requested by the user. This is what the
+     * table header displays.
+     */
     private TableModelComparator comparator = new TableModelComparator();
 
     /**
-     * All the rows are stored as a List. This should be set in the constructor.
+     * A copy of the sort criteria which the current order reflects or
+     * null if the rows are in the order in which they were added. This
+     * lags behind <code>comparator</code> while a sort is in progress.
+     */
+    private Comparator sortedBy;
+
+    /**
+     * Incremented for each sort request. A background sort is abandoned
+     * as soon as it notices that its generation is out of date.
+     */
+    private volatile int sortGeneration;
+
+    /**
+     * All the rows are stored as a List in the order in which they were
+     * added. This should be set in the constructor.
      */
     private List elements;
+
+    /**
+     * Indexes into <code>elements</code> in the current sort order. Only the
+     * first <code>orderCount</code> entries are valid.
+     */
+    private int[] order;
+    private int orderCount;
+
+    /**
+     * The indexes of the rows which are displayed. This is the same array
+     * as <code>order</code> unless the rows are being filtered.
+     */
+    private int[] view;
+    private int rowCount;
+
+    /**
+     * The display position of each element. This is built when it's
+     * needed and discarded whenever the view changes.
+     */
+    private int[] positions;
+
+    private boolean filtering;
+
+    private Task sortTask;
     
     /**
      * Used by the SortableTableHeader.SortHeaderMouseAdapter
+     * <p>
+     * The rows are sorted by a Task over a snapshot of the row 
+     * elements so that large tables don't block the event dispatch thread. 
+     * When the sort completes the new order replaces the current order in a 
+     * single step. A sort which is still running when another column is 
+     * selected is cancelled.
      */
     void sortByColumn(int column, boolean ascending) {
 	comparator.addColumn(column);
 	comparator.setAscending(ascending);
 
-	if (elements != null) {
-	    Collections.sort(elements, comparator);
-	    fireTableChanged(new TableModelEvent(this));
+	if (elements == null) {
+	    return;
 	}
+
+	final int generation = ++sortGeneration;
+	final List sortedElements = elements;
+	final List snapshot = Arrays.asList(elements.toArray());
+	final Comparator criteria = new TableModelComparator(comparator);
+	// Only the background sort may be cancelled. The order keeps the
+	// plain criteria for merging the rows which are added later.
+	final Comparator cancellable = new CancellableComparator(criteria, generation);
+
+	if (sortTask != null) {
+	    sortTask.cancel();
+	}
+	sortTask = new Task("sort", Task.HIGH) {
+		protected Object construct() {
+		    int[] indexes = new int[snapshot.size()];
+		    for (int i = 0; i < indexes.length; i++) {
+			indexes[i] = i;
+		    }
+		    try {
+			new IndexSorter(snapshot, cancellable).sort(indexes, indexes.length);
+		    } catch (SortCancelledException ex) {
+			return null;
+		    }
+		    return indexes;
+		}
+
+		protected void finished() {
+		    int[] indexes = (int[])get();
+		    if (indexes != null && generation == sortGeneration
+			&& sortedElements == elements) {
+			publishOrder(indexes, criteria);
+		    }
+		}
+	    };
+	sortTask.start();
+    }
+
+    /**
+     * Replaces the current order with the results of a background sort.
+     * Rows which were added after the snapshot was taken are merged in.
+     * Must be called on the event dispatch thread.
+     */
+    private void publishOrder(int[] indexes, Comparator criteria) {
+	int sorted = indexes.length;
+	int count = elements.size();
+
+	int[] newOrder = new int[Math.max(count, 16)];
+	System.arraycopy(indexes, 0, newOrder, 0, sorted);
+
+	order = newOrder;
+	orderCount = sorted;
+	sortedBy = criteria;
+	if (count > sorted) {
+	    mergeIndexes(sorted, count - sorted);
+	}
+	updateView(count, null);
+	fireTableChanged(new TableModelEvent(this));
     }
 
     /**
      * Set the row elements of the model. This method must be called before
-     * sorting can occur.
+     * sorting can occur. If the model has been sorted then the rows will
+     * be placed in the current sort order.
      * 
      * @param elements the collection of rows represented as List elements
      */
     protected void setRowElements(List elements) {
 	this.elements = elements;
+
+	// Any sort in progress is for the old rows.
+	sortGeneration++;
+	sortedBy = null;
+
+	orderCount = (elements != null ? elements.size() : 0);
+	order = new int[Math.max(orderCount, 16)];
+	for (int i = 0; i < orderCount; i++) {
+	    order[i] = i;
+	}
+	if (comparator.getColumn() != -1) {
+	    sortedBy = new TableModelComparator(comparator);
+	    new IndexSorter(elements, sortedBy).sort(order, orderCount);
+	}
+	updateView(orderCount, null);
+    }
+
+    /**
+     * Appends rows to the model. If the model is sorted, the new rows are
+     * sorted amongst themselves and then merged into the current order using
+     * a binary search for each insertion point. A rows inserted event is 
+     * fired for each contiguous run of new rows which is displayed so that 
+     * only the affected region of the table is repainted.
+     *
+     * @param rows the new rows to add to the model
+     */
+    protected void addRowElements(List rows) {
+	int first = elements.size();
+	elements.addAll(rows);
+	int count = elements.size() - first;
+	if (count == 0) {
+	    return;
+	}
+
+	int[] inserted = new int[count];
+	if (sortedBy == null) {
+	    ensureCapacity(orderCount + count);
+	    for (int i = 0; i < count; i++) {
+		inserted[i] = orderCount;
+		order[orderCount++] = first + i;
+	    }
+	} else {
+	    // The new row i ends up at points[i] + i.
+	    int[] points = mergeIndexes(first, count);
+	    for (int i = 0; i < count; i++) {
+		inserted[i] = points[i] + i;
+	    }
+	}
+
+	if (filtering) {
+	    count = updateView(first, inserted);
+	} else {
+	    updateView(first, null);
+	}
+
+	// Fire the events in ascending order for each run of adjacent rows.
+	int runStart = 0;
+	for (int i = 1; i <= count; i++) {
+	    if (i == count || inserted[i] != inserted[i - 1] + 1) {
+		fireTableRowsInserted(inserted[runStart], inserted[i - 1]);
+		runStart = i;
+	    }
+	}
+    }
+
+    /**
+     * Merges count elements starting at first into the sorted order.
+     *
+     * @return the insertion points of the sorted new elements in the
+     *         order as it was before the merge
+     */
+    private int[] mergeIndexes(int first, int count) {
+	IndexSorter sorter = new IndexSorter(elements, sortedBy);
+	ensureCapacity(orderCount + count);
+
+	int[] batch = new int[count];
+	for (int i = 0; i < count; i++) {
+	    batch[i] = first + i;
+	}
+	sorter.sort(batch, count);
+
+	// Insertion points in the existing order. Since the batch is sorted
+	// each search can start from the previous insertion point.
+	int[] points = new int[count];
+	int low = 0;
+	for (int i = 0; i < count; i++) {
+	    low = sorter.upperBound(batch[i], order, low, orderCount);
+	    points[i] = low;
+	}
+
+	// Merge from the back so that each existing row is moved only once.
+	int src = orderCount - 1;
+	int dest = orderCount + count - 1;
+	for (int i = count - 1; i >= 0; i--) {
+	    while (src >= points[i]) {
+		order[dest--] = order[src--];
+	    }
+	    order[dest--] = batch[i];
+	}
+	orderCount += count;
+
+	return points;
+    }
+
+    private void ensureCapacity(int capacity) {
+	if (order.length < capacity) {
+	    int[] temp = new int[Math.max(capacity, order.length * 2)];
+	    System.arraycopy(order, 0, temp, 0, orderCount);
+	    order = temp;
+	}
+    }
+
+    /**
+     * Rebuilds the displayed rows from the sort order. If inserted is not
+     * null, it will be filled with the display positions of the elements 
+     * at or after first.
+     *
+     * @return the number of those elements which are displayed
+     */
+    private int updateView(int first, int[] inserted) {
+	positions = null;
+	if (!filtering) {
+	    view = order;
+	    rowCount = orderCount;
+	    return orderCount - first;
+	}
+
+	if (view == order || view.length < orderCount) {
+	    view = new int[order.length];
+	}
+	int count = 0;
+	int visible = 0;
+	for (int i = 0; i < orderCount; i++) {
+	    int index = order[i];
+	    if (acceptRowElement(index)) {
+		if (index >= first) {
+		    if (inserted != null) {
+			inserted[count] = visible;
+		    }
+		    count++;
+		}
+		view[visible++] = index;
+	    }
+	}
+	rowCount = visible;
+	return count;
+    }
+
+    /**
+     * Turns filtering of the rows on or off. While filtering is on, only
+     * the rows accepted by <code>acceptRowElement</code> are displayed. 
+     * This should be called whenever the filter criteria change.
+     */
+    protected void setFiltering(boolean filtering) {
+	this.filtering = filtering;
+	if (elements != null) {
+	    updateView(orderCount, null);
+	    fireTableDataChanged();
+	}
+    }
+
+    protected boolean isFiltering() {
+	return filtering;
+    }
+
+    /**
+     * Returns true if the element at index in the row elements should
+     * be displayed while filtering. The default implementation accepts
+     * all the rows.
+     *
+     * @param index the index of the row in the order in which it was added
+     */
+    protected boolean acceptRowElement(int index) {
+	return true;
+    }
+
+    /**
+     * Returns the row element which is displayed at the row index.
+     */
+    protected Object getRowElement(int row) {
+	if (elements == null || row < 0 || row >= rowCount) {
+	    return null;
+	}
+	return elements.get(view[row]);
+    }
+
+    public int getRowCount() {
+	return rowCount;
+    }
+
+    /**
+     * Returns the row index at which an element is displayed.
+     *
+     * @param index the index of the element in the order it was added
+     * @return the row or -1 if the element isn't displayed
+     */
+    protected int getRowForElement(int index) {
+	if (elements == null || index < 0 || index >= elements.size()) {
+	    return -1;
+	}
+	if (positions == null || positions.length < elements.size()) {
+	    positions = new int[elements.size()];
+	    Arrays.fill(positions, -1);
+	    for (int row = 0; row < rowCount; row++) {
+		positions[view[row]] = row;
+	    }
+	}
+	return positions[index];
     }
 
     boolean isAscending() {
@@ -115,6 +427,19 @@ public abstract class SortableTableModel extends AbstractTableModel {
 	private boolean ascending;
 	private int[] columns;
 
+	public TableModelComparator() {
+	}
+
+	/**
+	 * Creates a copy of the sort criteria of another comparator.
+	 */
+	public TableModelComparator(TableModelComparator other) {
+	    this.ascending = other.ascending;
+	    if (other.columns != null) {
+		this.columns = (int[])other.columns.clone();
+	    }
+	}
+
 	/**
 	 * Add the column to the sort criteria
 	 */
@@ -191,6 +516,111 @@ public abstract class SortableTableModel extends AbstractTableModel {
 	    return 0;
 	}
     } // end TableModelComparator
+
+    /**
+     * Wraps the comparator of a background sort. Each comparison checks
+     * whether a newer sort has been requested and aborts the sort if it has.
+     */
+    private class CancellableComparator implements Comparator {
+
+	private Comparator comparator;
+	private int generation;
+
+	public CancellableComparator(Comparator comparator, int generation) {
+	    this.comparator = comparator;
+	    this.generation = generation;
+	}
+
+	public int compare(Object row1, Object row2) {
+	    if (generation != sortGeneration) {
+		throw new SortCancelledException();
+	    }
+	    return comparator.compare(row1, row2);
+	}
+    } // end CancellableComparator
+
+    private static class SortCancelledException extends RuntimeException {
+    }
+
+    /**
+     * Sorts and searches arrays of indexes into a list of rows.
+     */
+    private static class IndexSorter {
+
+	private List rows;
+	private Comparator comparator;
+
+	public IndexSorter(List rows, Comparator comparator) {
+	    this.rows = rows;
+	    this.comparator = comparator;
+	}
+
+	private int compare(int index1, int index2) {
+	    return comparator.compare(rows.get(index1), rows.get(index2));
+	}
+
+	/**
+	 * Returns the first position in the sorted range [low, high) of
+	 * order whose row is greater than the row at index. Rows which
+	 * compare equal stay ahead of the new row.
+	 */
+	public int upperBound(int index, int[] order, int low, int high) {
+	    while (low < high) {
+		int mid = (low + high) >>> 1;
+		if (compare(index, order[mid]) < 0) {
+		    high = mid;
+		} else {
+		    low = mid + 1;
+		}
+	    }
+	    return low;
+	}
+
+	/**
+	 * Stable merge sort of the first length entries of an array of
+	 * indexes. 
+	 */
+	public void sort(int[] indexes, int length) {
+	    if (length > 1) {
+		int[] src = new int[length];
+		System.arraycopy(indexes, 0, src, 0, length);
+		mergeSort(src, indexes, 0, length);
+	    }
+	}
+
+	private void mergeSort(int[] src, int[] dest, int low, int high) {
+	    int length = high - low;
+	    if (length < 7) {
+		// Insertion sort on the smallest arrays
+		for (int i = low; i < high; i++) {
+		    for (int j = i; j > low && compare(dest[j - 1], dest[j]) > 0; j--) {
+			int t = dest[j];
+			dest[j] = dest[j - 1];
+			dest[j - 1] = t;
+		    }
+		}
+		return;
+	    }
+
+	    int mid = (low + high) >>> 1;
+	    mergeSort(dest, src, low, mid);
+	    mergeSort(dest, src, mid, high);
+
+	    // Already in order
+	    if (compare(src[mid - 1], src[mid]) <= 0) {
+		System.arraycopy(src, low, dest, low, length);
+		return;
+	    }
+
+	    for (int i = low, p = low, q = mid; i < high; i++) {
+		if (q >= high || p < mid && compare(src[p], src[q]) <= 0) {
+		    dest[i] = src[p++];
+		} else {
+		    dest[i] = src[q++];
+		}
+	    }
+	}
+    } // end IndexSorter
 }
 
     
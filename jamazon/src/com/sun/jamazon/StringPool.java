@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2018 Oracle and/or its affiliates. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Distribution License v. 1.0, which is available at
+ * http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+
+package com.sun.jamazon;
+
+import java.lang.ref.WeakReference;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * A pool of canonical strings which is shared by all the models. Strings
+ * such as manufacturers, authors and release dates repeat on many rows and
+ * only one copy of each is kept. Strings which are no longer used by any
+ * row are discarded by the garbage collector.
+ * <p>
+ * String.intern isn't used since interned strings are never collected.
+ */
+public class StringPool {
+
+    // String -> WeakReference to the canonical String
+    private static Map pool = new WeakHashMap();
+
+    private StringPool() {
+    }
+
+    /**
+     * Returns the canonical copy of the string.
+     */
+    public static synchronized String get(String value) {
+	if (value == null) {
+	    return null;
+	}
+
+	WeakReference ref = (WeakReference)pool.get(value);
+	String canonical = (ref != null ? (String)ref.get() : null);
+	if (canonical == null) {
+	    // The string may be a substring of a much larger document.
+	    // Copy it so that the document isn't kept in memory.
+	    canonical = new String(value);
+	    pool.put(canonical, new WeakReference(canonical));
+	}
+	return canonical;
+    }
+
+    /**
+     * Returns an array of the canonical copies of the strings. The
+     * array is modified in place.
+     */
+    public static String[] get(String[] values) {
+	if (values != null) {
+	    for (int i = 0; i < values.length; i++) {
+		values[i] = get(values[i]);
+	    }
+	}
+	return values;
+    }
+}
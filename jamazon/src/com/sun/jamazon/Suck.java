@@ -45,7 +45,7 @@ public class Suck {
 	proxy.setKeyword("java");
 	//	proxy.setType("lite");
 
-	if (proxy.executeRequest()) {
+	if (executeRequest()) {
 	    info = (ProductInfo)proxy.getResults();
 
 	    total = proxy.getNumberOfResults();
@@ -66,7 +66,7 @@ public class Suck {
 			    proxy.setPage(Integer.toString(currentPage, 10));
 			    
 			    synchronized (info) {
-				if (proxy.executeRequest()) {
+				if (executeRequest()) {
 				    info = (ProductInfo)proxy.getResults();
 				    addDetails(info.getDetails());
 				}
@@ -80,17 +80,34 @@ public class Suck {
 			}
 		    };
 		timer = new Timer();
-		timer.schedule(task, 0L, 1050L);
+		// executeRequest waits for the quota so the timer only has
+		// to keep asking
+		timer.schedule(task, 0L, RequestScheduler.getDefault().getInterval());
 	    }
 	}
     }
 
+    /**
+     * Sends the request when the quota allows. The requests are in the
+     * bulk lane so a search in the window goes first.
+     */
+    private boolean executeRequest() {
+	try {
+	    RequestScheduler.getDefault().acquire(RequestScheduler.BULK);
+	} catch (InterruptedException ex) {
+	    return false;
+	}
+	return proxy.executeRequest();
+    }
+
     private void init() {
 	if (writer == null) {
 	    try {
 		File file = new File(filename);
 		FileOutputStream fos = new FileOutputStream(file);
-		writer = new PrintWriter(new BufferedOutputStream(fos), true);
+		// The same charset as CatalogIndex reads
+		writer = new PrintWriter(new OutputStreamWriter(
+		    new BufferedOutputStream(fos), "UTF-8"), true);
 		System.out.println(file.getAbsolutePath() + " opened for output...");
 	    } catch (Exception ex) {
 		ex.printStackTrace();
@@ -0,0 +1,234 @@
+/*
+ * Copyright (c) 2018 Oracle and/or its affiliates. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Distribution License v. 1.0, which is available at
+ * http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+
+package com.sun.jamazon;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.swing.SwingUtilities;
+
+/**
+ * A unit of background work which is run by a <code>TaskExecutor</code>.
+ * Subclasses implement <code>construct</code>, which runs on one of the
+ * executor's threads, and <code>finished</code>, which is called on the
+ * event dispatch thread when it has returned.
+ * <p>
+ * Intermediate results are sent to the event dispatch thread with
+ * <code>publish</code>. The results which are published while the event
+ * dispatch thread is busy are delivered together in one call to
+ * <code>process</code>.
+ * <p>
+ * Cancellation is cooperative. <code>cancel</code> removes a task which
+ * hasn't started from the queue. A running task should check
+ * <code>isCancelled</code> and return early. The thread is interrupted so
+ * that waits and sleeps end, but a blocking call such as a web service
+ * request can't be interrupted and has to be abandoned by the task. The
+ * <code>finished</code> method isn't called for a cancelled task.
+ * <p>
+ * The time each task spends in the queue and running is added to the
+ * <code>tasks.*</code> metrics.
+ */
+public abstract class Task {
+
+    public static final int LOW = 0;
+    public static final int NORMAL = 1;
+    public static final int HIGH = 2;
+
+    private String name;
+    private int priority = NORMAL;
+
+    private volatile boolean cancelled;
+    private Thread thread;
+    private TaskExecutor executor;
+
+    private Object value;
+    private Exception exception;
+
+    // Results which haven't been processed
+    private List chunks = new ArrayList();
+
+    private long submitted;
+
+    private Runnable doProcess = new Runnable() {
+	    public void run() {
+		List published;
+		synchronized (Task.this) {
+		    published = chunks;
+		    chunks = new ArrayList();
+		}
+		if (!cancelled) {
+		    process(published);
+		}
+	    }
+	};
+
+    private Runnable doFinished = new Runnable() {
+	    public void run() {
+		if (!cancelled) {
+		    finished();
+		}
+	    }
+	};
+
+    /**
+     * @param name used for the metrics and the thread name
+     */
+    public Task(String name) {
+	this.name = name;
+    }
+
+    public Task(String name, int priority) {
+	this(name);
+	setPriority(priority);
+    }
+
+    public String getName() {
+	return name;
+    }
+
+    public int getPriority() {
+	return priority;
+    }
+
+    /**
+     * Sets the priority. Must be called before the task is started.
+     *
+     * @param priority LOW, NORMAL or HIGH
+     */
+    public void setPriority(int priority) {
+	this.priority = Math.max(LOW, Math.min(HIGH, priority));
+    }
+
+    /**
+     * Computes the result of the task. Called on a worker thread.
+     */
+    protected abstract Object construct() throws Exception;
+
+    /**
+     * Called on the event dispatch thread with the results which have been
+     * published since the last call.
+     */
+    protected void process(List chunks) {
+    }
+
+    /**
+     * Called on the event dispatch thread after <code>construct</code> has
+     * returned or thrown an exception, unless the task has been cancelled.
+     */
+    protected void finished() {
+    }
+
+    /**
+     * Sends an intermediate result to <code>process</code>. Called by
+     * <code>construct</code>.
+     */
+    protected void publish(Object chunk) {
+	boolean schedule;
+	synchronized (this) {
+	    schedule = chunks.isEmpty();
+	    chunks.add(chunk);
+	}
+	if (schedule) {
+	    SwingUtilities.invokeLater(doProcess);
+	}
+    }
+
+    /**
+     * Returns the value returned by <code>construct</code>.
+     */
+    public synchronized Object get() {
+	return value;
+    }
+
+    /**
+     * Returns the exception thrown by <code>construct</code> or null.
+     */
+    public synchronized Exception getException() {
+	return exception;
+    }
+
+    public boolean isCancelled() {
+	return cancelled;
+    }
+
+    /**
+     * Cancels the task. A task which is running should stop as soon as it
+     * can.
+     */
+    public void cancel() {
+	cancelled = true;
+	synchronized (this) {
+	    if (executor != null && executor.remove(this)) {
+		return;
+	    }
+	    if (thread != null) {
+		thread.interrupt();
+	    }
+	}
+    }
+
+    /**
+     * Queues the task on the shared executor.
+     */
+    public void start() {
+	start(TaskExecutor.getDefault());
+    }
+
+    public void start(TaskExecutor executor) {
+	synchronized (this) {
+	    this.executor = executor;
+	    submitted = System.currentTimeMillis();
+	}
+	executor.execute(this);
+    }
+
+    /**
+     * Called by the executor on the worker thread.
+     */
+    void run() {
+	long started = System.currentTimeMillis();
+	synchronized (this) {
+	    if (cancelled) {
+		return;
+	    }
+	    thread = Thread.currentThread();
+	}
+	Metrics.add("tasks." + name + ".queueTime", started - submitted);
+
+	String threadName = thread.getName();
+	thread.setName(threadName + " - " + name);
+	Object result = null;
+	Exception error = null;
+	try {
+	    result = construct();
+	} catch (Exception ex) {
+	    if (!cancelled) {
+		ex.printStackTrace();
+	    }
+	    error = ex;
+	} finally {
+	    synchronized (this) {
+		value = result;
+		exception = error;
+		thread.setName(threadName);
+		thread = null;
+	    }
+	}
+
+	Metrics.increment("tasks." + name + ".count");
+	Metrics.add("tasks." + name + ".runTime", System.currentTimeMillis() - started);
+	if (cancelled) {
+	    Metrics.increment("tasks." + name + ".cancelled");
+	} else {
+	    SwingUtilities.invokeLater(doFinished);
+	}
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2018 Oracle and/or its affiliates. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Distribution License v. 1.0, which is available at
+ * http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+
+package com.sun.jamazon;
+
+import java.util.LinkedList;
+
+/**
+ * Runs <code>Task</code>s on a fixed number of worker threads. Tasks with
+ * a higher priority are started first and tasks with the same priority
+ * are started in the order they were submitted.
+ * <p>
+ * The client shares one executor whose number of threads is set with the
+ * <code>jamazon.tasks.threads</code> system property.
+ *
+ * @see Task
+ */
+public class TaskExecutor {
+
+    private static final int DEFAULT_THREADS = 4;
+
+    private static TaskExecutor defaultExecutor;
+
+    // A queue for each priority
+    private LinkedList[] queues = new LinkedList[Task.HIGH + 1];
+    private int queued;
+
+    public TaskExecutor(String name, int threads) {
+	for (int i = 0; i < queues.length; i++) {
+	    queues[i] = new LinkedList();
+	}
+	for (int i = 0; i < threads; i++) {
+	    Thread thread = new Thread(new Runnable() {
+		    public void run() {
+			while (true) {
+			    Task task = nextTask();
+			    task.run();
+			    // Clear the interrupted status of a cancelled task
+			    Thread.interrupted();
+			}
+		    }
+		}, name + " " + i);
+	    thread.setDaemon(true);
+	    thread.start();
+	}
+    }
+
+    /**
+     * Returns the executor which is shared by the client.
+     */
+    public static synchronized TaskExecutor getDefault() {
+	if (defaultExecutor == null) {
+	    defaultExecutor = new TaskExecutor("JAmazon task", 
+		Integer.getInteger("jamazon.tasks.threads", DEFAULT_THREADS).intValue());
+	}
+	return defaultExecutor;
+    }
+
+    /**
+     * Queues the task.
+     */
+    public synchronized void execute(Task task) {
+	queues[task.getPriority()].addLast(task);
+	queued++;
+	Metrics.max("tasks.maxQueued", queued);
+	notify();
+    }
+
+    /**
+     * Removes the task if it hasn't been started.
+     *
+     * @return true if the task was removed
+     */
+    synchronized boolean remove(Task task) {
+	if (queues[task.getPriority()].remove(task)) {
+	    queued--;
+	    return true;
+	}
+	return false;
+    }
+
+    /**
+     * Returns the number of tasks which are waiting for a thread.
+     */
+    public synchronized int getQueuedCount() {
+	return queued;
+    }
+
+    private synchronized Task nextTask() {
+	while (queued == 0) {
+	    try {
+		wait();
+	    } catch (InterruptedException ex) {
+		// drop through
+	    }
+	}
+	queued--;
+	for (int i = queues.length - 1; ; i--) {
+	    if (!queues[i].isEmpty()) {
+		return (Task)queues[i].removeFirst();
+	    }
+	}
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ * Copyright (c) 2018 Oracle and/or its affiliates. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Distribution License v. 1.0, which is available at
+ * http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+
+package com.sun.jamazon;
+
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.Image;
+import java.awt.Point;
+import java.awt.Rectangle;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+
+import java.awt.image.BufferedImage;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import javax.swing.JTable;
+import javax.swing.JViewport;
+import javax.swing.Timer;
+
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+import javax.swing.event.TableModelEvent;
+import javax.swing.event.TableModelListener;
+
+/**
+ * Loads the small product images for the thumbnail column of the results
+ * table. Only the images for the rows in the viewport and a page of rows
+ * either side of it are loaded. The loads start when the table has
+ * stopped scrolling for a moment and the loads for rows which have been
+ * scrolled out of range are cancelled, so scrolling quickly through the
+ * table doesn't queue a download for every row.
+ * <p>
+ * A placeholder is shown until the image arrives and then only its cell
+ * is repainted.
+ */
+public class ThumbnailLoader {
+
+    public static final int SIZE = 32;
+
+    // How long the viewport has to be still before loading
+    private static final int DELAY = 150;
+
+    /**
+     * Returned by <code>getThumbnail</code> until the image is loaded.
+     */
+    public static final Image PLACEHOLDER = createPlaceholder();
+
+    private JTable table;
+    private DetailsTableModel model;
+    private ImageService images;
+
+    // ASIN -> ImageService.Request for the images being loaded
+    private Map loading = new HashMap();
+
+    // ASIN -> Image for the rows in range so they can be painted without
+    // looking up the image URL
+    private Map visible = new HashMap();
+
+    // The ASINs of the images which couldn't be loaded
+    private Set failed = new HashSet();
+
+    private Timer timer;
+
+    public ThumbnailLoader(ImageService images) {
+	this.images = images;
+
+	timer = new Timer(DELAY, new ActionListener() {
+		public void actionPerformed(ActionEvent evt) {
+		    loadVisible();
+		}
+	    });
+	timer.setRepeats(false);
+    }
+
+    /**
+     * Starts loading the images for the table. The table must be in
+     * a viewport.
+     */
+    public void install(JTable table) {
+	this.table = table;
+	model = (DetailsTableModel)table.getModel();
+
+	JViewport viewport = (JViewport)table.getParent();
+	viewport.addChangeListener(new ChangeListener() {
+		public void stateChanged(ChangeEvent evt) {
+		    timer.restart();
+		}
+	    });
+	model.addTableModelListener(new TableModelListener() {
+		public void tableChanged(TableModelEvent evt) {
+		    timer.restart();
+		}
+	    });
+    }
+
+    /**
+     * Returns the thumbnail for the row, the <code>PLACEHOLDER</code> if
+     * it isn't loaded yet or null if the row doesn't have an image. The
+     * image will be loaded if the row is still visible when the table
+     * stops scrolling.
+     * <p>
+     * This is called to paint the cells so it doesn't look up the image
+     * URL, which may have to read the details from the store. The URLs
+     * are looked up by <code>loadVisible</code>.
+     */
+    public Image getThumbnail(int row) {
+	String asin = model.getAsin(row);
+	if (asin == null) {
+	    // A row which hasn't been fetched
+	    return null;
+	}
+	Image image = (Image)visible.get(asin);
+	if (image != null || failed.contains(asin)) {
+	    return image;
+	}
+	return PLACEHOLDER;
+    }
+
+    private void loadVisible() {
+	if (table == null || model.getRowCount() == 0) {
+	    visible.clear();
+	    cancelAll();
+	    return;
+	}
+
+	Rectangle rect = table.getVisibleRect();
+	int first = table.rowAtPoint(rect.getLocation());
+	int last = table.rowAtPoint(new Point(rect.x, rect.y + rect.height - 1));
+	if (first == -1) {
+	    first = 0;
+	}
+	if (last == -1) {
+	    last = model.getRowCount() - 1;
+	}
+
+	// Prefetch a page above and below
+	int margin = last - first + 1;
+	int start = Math.max(0, first - margin);
+	int end = Math.min(model.getRowCount() - 1, last + margin);
+
+	// Forget the images of the rows which have gone out of range
+	Iterator iter = visible.keySet().iterator();
+	while (iter.hasNext()) {
+	    int row = model.findRowByAsin((String)iter.next());
+	    if (row < start || row > end) {
+		iter.remove();
+	    }
+	}
+
+	// Cancel the rows which have gone out of range
+	iter = loading.entrySet().iterator();
+	while (iter.hasNext()) {
+	    Map.Entry entry = (Map.Entry)iter.next();
+	    int row = model.findRowByAsin((String)entry.getKey());
+	    if (row < start || row > end) {
+		((ImageService.Request)entry.getValue()).cancel();
+		iter.remove();
+	    }
+	}
+
+	// The visible rows are loaded first
+	for (int row = first; row <= last; row++) {
+	    load(row);
+	}
+	for (int i = 1; i <= margin; i++) {
+	    if (last + i <= end) {
+		load(last + i);
+	    }
+	    if (first - i >= start) {
+		load(first - i);
+	    }
+	}
+    }
+
+    private void load(int row) {
+	String asin = model.getAsin(row);
+	if (asin == null || loading.containsKey(asin) || failed.contains(asin)) {
+	    return;
+	}
+	if (visible.containsKey(asin)) {
+	    return;
+	}
+	String url = model.getImageUrl(row);
+	if (url == null) {
+	    failed.add(asin);
+	    repaint(row);
+	    return;
+	}
+	Image image = images.getCachedImage(url, SIZE, SIZE);
+	if (image != null) {
+	    // The placeholder may have been painted
+	    visible.put(asin, image);
+	    repaint(row);
+	    return;
+	}
+
+	final String key = asin;
+	ImageService.Request request = images.load(url, SIZE, SIZE,
+						   new ImageService.Listener() {
+		public void imageLoaded(ImageService.Request request, Image image) {
+		    loading.remove(key);
+		    if (image != null) {
+			visible.put(key, image);
+		    } else {
+			failed.add(key);
+		    }
+		    repaint(key);
+		}
+	    });
+	if (!request.isDone()) {
+	    loading.put(asin, request);
+	}
+    }
+
+    private void repaint(String asin) {
+	int row = model.findRowByAsin(asin);
+	if (row != -1) {
+	    repaint(row);
+	}
+    }
+
+    private void repaint(int row) {
+	int column = table.convertColumnIndexToView(DetailsTableModel.DetailsColumnModel.IDX_IMAGE);
+	if (column != -1) {
+	    table.repaint(table.getCellRect(row, column, false));
+	}
+    }
+
+    private static Image createPlaceholder() {
+	BufferedImage image = new BufferedImage(SIZE, SIZE, BufferedImage.TYPE_INT_ARGB);
+	Graphics g = image.getGraphics();
+	g.setColor(new Color(0, 0, 0, 32));
+	g.fillRect(0, 0, SIZE, SIZE);
+	g.setColor(new Color(0, 0, 0, 64));
+	g.drawRect(0, 0, SIZE - 1, SIZE - 1);
+	g.dispose();
+	return image;
+    }
+
+    private void cancelAll() {
+	Iterator iter = loading.values().iterator();
+	while (iter.hasNext()) {
+	    ((ImageService.Request)iter.next()).cancel();
+	}
+	loading.clear();
+    }
+}
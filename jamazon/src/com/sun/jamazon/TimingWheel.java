@@ -0,0 +1,242 @@
+/*
+ * Copyright (c) 2018 Oracle and/or its affiliates. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Distribution License v. 1.0, which is available at
+ * http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+
+package com.sun.jamazon;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Runs many timeouts on a single thread. The timeouts are kept in a
+ * hierarchical timing wheel, so scheduling a timeout takes constant time
+ * however many are pending and the thread only wakes once a tick.
+ * <p>
+ * Time is divided into ticks. The first level of the wheel has a slot for
+ * each of the next 64 ticks, the second level a slot for each of the next
+ * 64 blocks of 64 ticks and so on. When the first level comes round to
+ * slot 0 the next slot of the second level is spread over the first
+ * level. The timeouts in the current slot of the first level have
+ * expired.
+ * <p>
+ * The tasks are run on the wheel's thread so they should be short. A
+ * task which does any real work should hand it to another thread.
+ */
+public class TimingWheel {
+
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int MASK = SLOTS - 1;
+    private static final int LEVELS = 4;
+
+    private long tickMillis;
+    private long startTime;
+    private long currentTick;
+
+    private LinkedList[][] wheel = new LinkedList[LEVELS][SLOTS];
+    private int count;
+    private boolean stopped;
+
+    /**
+     * @param name the name of the thread
+     * @param tickMillis the resolution of the timeouts
+     */
+    public TimingWheel(String name, long tickMillis) {
+	this.tickMillis = tickMillis;
+	for (int level = 0; level < LEVELS; level++) {
+	    for (int slot = 0; slot < SLOTS; slot++) {
+		wheel[level][slot] = new LinkedList();
+	    }
+	}
+	startTime = System.currentTimeMillis();
+
+	Thread thread = new Thread(new Runnable() {
+		public void run() {
+		    while (true) {
+			List expired = nextExpired();
+			if (expired == null) {
+			    break;
+			}
+			for (int i = 0; i < expired.size(); i++) {
+			    Timeout timeout = (Timeout)expired.get(i);
+			    try {
+				timeout.task.run();
+			    } catch (RuntimeException ex) {
+				ex.printStackTrace();
+			    }
+			}
+		    }
+		}
+	    }, name);
+	thread.setDaemon(true);
+	thread.start();
+    }
+
+    /**
+     * Runs the task after the delay. The task may run up to a tick late.
+     *
+     * @return the timeout which may be used to cancel the task
+     */
+    public synchronized Timeout schedule(Runnable task, long delay) {
+	long now = System.currentTimeMillis() - startTime;
+	if (count == 0) {
+	    // The wheel is empty so it can jump to the current tick
+	    currentTick = now / tickMillis;
+	}
+	Timeout timeout = new Timeout(task, (now + delay + tickMillis - 1) / tickMillis);
+	add(timeout);
+	count++;
+	notify();
+	return timeout;
+    }
+
+    /**
+     * Returns the number of timeouts which haven't expired or been
+     * cancelled.
+     */
+    public synchronized int getCount() {
+	return count;
+    }
+
+    /**
+     * Stops the thread. The pending timeouts are dropped.
+     */
+    public synchronized void stop() {
+	stopped = true;
+	notify();
+    }
+
+    private void add(Timeout timeout) {
+	long delta = timeout.deadline - currentTick;
+	long tick = timeout.deadline;
+	if (delta <= 0) {
+	    // Already due
+	    delta = 1;
+	    tick = currentTick + 1;
+	}
+
+	int level = 0;
+	long range = SLOTS;
+	while (level < LEVELS - 1 && delta >= range) {
+	    level++;
+	    range <<= SLOT_BITS;
+	}
+	if (delta >= range) {
+	    // Beyond the wheel. It will be placed again when its slot is
+	    // spread over the lower levels.
+	    tick = currentTick + range - 1;
+	}
+
+	LinkedList slot = wheel[level][(int)(tick >> (level * SLOT_BITS)) & MASK];
+	slot.add(timeout);
+	timeout.slot = slot;
+    }
+
+    /**
+     * Waits for the next tick which has timeouts.
+     *
+     * @return the timeouts which have expired or null if the wheel has
+     *         been stopped
+     */
+    private synchronized List nextExpired() {
+	while (!stopped) {
+	    long now = System.currentTimeMillis() - startTime;
+	    if (count == 0) {
+		// Nothing to tick over
+		try {
+		    wait();
+		} catch (InterruptedException ex) {
+		    // drop through
+		}
+		continue;
+	    }
+
+	    long wait = (currentTick + 1) * tickMillis - now;
+	    if (wait > 0) {
+		try {
+		    wait(wait);
+		} catch (InterruptedException ex) {
+		    // drop through
+		}
+		continue;
+	    }
+
+	    List expired = tick();
+	    if (!expired.isEmpty()) {
+		return expired;
+	    }
+	}
+	return null;
+    }
+
+    /**
+     * Advances the wheel by a tick.
+     *
+     * @return the timeouts which have expired
+     */
+    private List tick() {
+	currentTick++;
+
+	// Spread the higher levels over the lower levels as they come round
+	for (int level = 1; level < LEVELS; level++) {
+	    int shift = level * SLOT_BITS;
+	    if ((currentTick & ((1L << shift) - 1)) != 0) {
+		break;
+	    }
+	    LinkedList slot = wheel[level][(int)(currentTick >> shift) & MASK];
+	    List timeouts = new ArrayList(slot);
+	    slot.clear();
+	    for (int i = 0; i < timeouts.size(); i++) {
+		add((Timeout)timeouts.get(i));
+	    }
+	}
+
+	LinkedList slot = wheel[0][(int)currentTick & MASK];
+	List expired = new ArrayList(slot.size());
+	while (!slot.isEmpty()) {
+	    Timeout timeout = (Timeout)slot.removeFirst();
+	    timeout.slot = null;
+	    expired.add(timeout);
+	}
+	count -= expired.size();
+	return expired;
+    }
+
+    /**
+     * A task which has been scheduled.
+     */
+    public class Timeout {
+	private Runnable task;
+	private long deadline;
+	private LinkedList slot;
+
+	Timeout(Runnable task, long deadline) {
+	    this.task = task;
+	    this.deadline = deadline;
+	}
+
+	/**
+	 * Stops the task from running if it hasn't expired.
+	 *
+	 * @return false if the task has already expired or been cancelled
+	 */
+	public boolean cancel() {
+	    synchronized (TimingWheel.this) {
+		if (slot == null) {
+		    return false;
+		}
+		slot.remove(this);
+		slot = null;
+		count--;
+		return true;
+	    }
+	}
+    }
+}
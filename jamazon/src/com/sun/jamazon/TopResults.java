@@ -0,0 +1,236 @@
+/*
+ * Copyright (c) 2018 Oracle and/or its affiliates. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Distribution License v. 1.0, which is available at
+ * http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+
+package com.sun.jamazon;
+
+import myamazonclient.AmazonClientGenClient.Details;
+import myamazonclient.AmazonClientGenClient.Reviews;
+
+/**
+ * Keeps the best results of a search by one of the columns of the table
+ * as the pages arrive, such as the 20 cheapest. Only the best results are
+ * held, in a heap with the worst of them at the top, so the memory used
+ * doesn't depend on the number of pages.
+ * <p>
+ * If the search is sent with the Amazon sort for the column the results
+ * arrive best first. Once the heap is full and a page ends with a result
+ * which is no better than the worst of the heap, the pages which follow
+ * can't change the answer and <code>isComplete</code> returns true. The
+ * order of the results is checked as they arrive, so if the service
+ * ignores the sort all of the pages are read.
+ * <p>
+ * Results which have no value for the column, such as a product without
+ * a price, are left out.
+ */
+public class TopResults {
+
+    private int column;
+    private boolean ascending;
+    private boolean sorted;
+
+    // A binary heap with the worst entry at 0
+    private Entry[] heap;
+    private int size;
+
+    private int count;
+    private Comparable last;
+    private boolean complete;
+
+    /**
+     * @param size the number of results to keep
+     * @param column the column of the DetailsColumnModel to order by
+     * @param ascending true to keep the lowest values
+     * @param sorted true if the search has been sent with the sort from
+     *        <code>getSort</code>
+     */
+    public TopResults(int size, int column, boolean ascending, boolean sorted) {
+	this.column = column;
+	this.ascending = ascending;
+	this.sorted = sorted;
+	heap = new Entry[Math.max(1, size)];
+    }
+
+    /**
+     * Returns the Amazon sort which returns the results of a search in the
+     * order of the column or null if there isn't one.
+     */
+    public static String getSort(int column, boolean ascending) {
+	// Amazon doesn't order the titles the same way as the table so
+	// they can't be stopped early
+	switch (column) {
+	case DetailsTableModel.DetailsColumnModel.IDX_AMAZ_PRICE:
+	    return (ascending ? "+pricerank" : "+inverse-pricerank");
+
+	case DetailsTableModel.DetailsColumnModel.IDX_RATING:
+	    return (ascending ? null : "+reviewrank");
+	}
+	return null;
+    }
+
+    /**
+     * Adds a page of results.
+     *
+     * @return true if the following pages can't change the results
+     */
+    public boolean add(Details[] details) {
+	for (int i = 0; details != null && i < details.length; i++) {
+	    if (details[i] == null) {
+		continue;
+	    }
+	    Comparable value = getValue(details[i]);
+	    if (value == null) {
+		continue;
+	    }
+	    if (last != null && compare(value, last) < 0) {
+		// Not in the order of the column after all
+		sorted = false;
+	    }
+	    last = value;
+	    offer(new Entry(details[i], value, count++));
+	}
+	complete = (sorted && size == heap.length && last != null &&
+		    compare(last, heap[0].value) >= 0);
+	return complete;
+    }
+
+    /**
+     * Returns true if the pages which follow can't change the results.
+     */
+    public boolean isComplete() {
+	return complete;
+    }
+
+    /**
+     * Returns the number of results which had a value for the column.
+     */
+    public int getCount() {
+	return count;
+    }
+
+    /**
+     * Returns the results which have been kept, best first.
+     */
+    public Details[] getDetails() {
+	Entry[] entries = new Entry[size];
+	System.arraycopy(heap, 0, entries, 0, size);
+	// Insertion sort is fine for a few dozen entries
+	for (int i = 1; i < entries.length; i++) {
+	    Entry entry = entries[i];
+	    int j = i;
+	    while (j > 0 && isWorse(entries[j - 1], entry)) {
+		entries[j] = entries[j - 1];
+		j--;
+	    }
+	    entries[j] = entry;
+	}
+	Details[] details = new Details[size];
+	for (int i = 0; i < size; i++) {
+	    details[i] = entries[i].details;
+	}
+	return details;
+    }
+
+    private void offer(Entry entry) {
+	if (size < heap.length) {
+	    // Sift up
+	    int i = size++;
+	    while (i > 0 && isWorse(entry, heap[(i - 1) / 2])) {
+		heap[i] = heap[(i - 1) / 2];
+		i = (i - 1) / 2;
+	    }
+	    heap[i] = entry;
+	    return;
+	}
+	if (!isWorse(heap[0], entry)) {
+	    return;
+	}
+	// Replace the worst and sift down
+	int i = 0;
+	while (true) {
+	    int child = 2 * i + 1;
+	    if (child >= size) {
+		break;
+	    }
+	    if (child + 1 < size && isWorse(heap[child + 1], heap[child])) {
+		child++;
+	    }
+	    if (!isWorse(heap[child], entry)) {
+		break;
+	    }
+	    heap[i] = heap[child];
+	    i = child;
+	}
+	heap[i] = entry;
+    }
+
+    /**
+     * Returns true if the first entry is worse than the second. Of two
+     * equal values the one which arrived later is worse, so that the
+     * results keep the order of the search.
+     */
+    private boolean isWorse(Entry entry1, Entry entry2) {
+	int result = compare(entry1.value, entry2.value);
+	return (result > 0 || (result == 0 && entry1.order > entry2.order));
+    }
+
+    /**
+     * Compares the values so that the better one is less.
+     */
+    private int compare(Comparable value1, Comparable value2) {
+	int result = value1.compareTo(value2);
+	return (ascending ? result : -result);
+    }
+
+    private Comparable getValue(Details details) {
+	switch (column) {
+	case DetailsTableModel.DetailsColumnModel.IDX_TITLE:
+	    return details.getProductName();
+
+	case DetailsTableModel.DetailsColumnModel.IDX_AUTHOR:
+	    String[] authors = details.getAuthors();
+	    return (authors != null && authors.length > 0 ? authors[0] : null);
+
+	case DetailsTableModel.DetailsColumnModel.IDX_LIST_PRICE:
+	    return getPrice(details.getListPrice());
+
+	case DetailsTableModel.DetailsColumnModel.IDX_AMAZ_PRICE:
+	    return getPrice(details.getOurPrice());
+
+	case DetailsTableModel.DetailsColumnModel.IDX_RATING:
+	    Reviews reviews = details.getReviews();
+	    if (reviews != null && reviews.getAvgCustomerRating() != null) {
+		try {
+		    return Float.valueOf(reviews.getAvgCustomerRating());
+		} catch (NumberFormatException ex) {
+		    // drop through, not rated
+		}
+	    }
+	    return null;
+	}
+	return null;
+    }
+
+    private static Float getPrice(String price) {
+	Float value = DetailsTableModel.getFloatFromPrice(price);
+	return (value.floatValue() > 0f ? value : null);
+    }
+
+    private static class Entry {
+	Details details;
+	Comparable value;
+	int order;
+
+	Entry(Details details, Comparable value, int order) {
+	    this.details = details;
+	    this.value = value;
+	    this.order = order;
+	}
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) 2018 Oracle and/or its affiliates. All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Distribution License v. 1.0, which is available at
+ * http://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+
+package com.sun.jamazon;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+
+import myamazonclient.AmazonClientGenClient.Details;
+
+/**
+ * Collects the pages of results which arrive on the fetching thread and
+ * adds them to the model in batches on the event dispatch thread. The
+ * model and the status bar are updated at most once a frame however
+ * quickly the pages arrive. The frame is set with the
+ * <code>jamazon.update.frame</code> system property (in milliseconds).
+ * <p>
+ * If the event dispatch thread falls behind, the results build up and
+ * the fetching thread is blocked in <code>add</code> until the number of
+ * rows waiting is below <code>jamazon.update.backlog</code>.
+ * <p>
+ * Each search has a generation. Results from an older search are dropped.
+ */
+public class UpdateCoalescer {
+
+    private static final int DEFAULT_FRAME = 16;
+    private static final int DEFAULT_BACKLOG = 1000;
+
+    private DetailsTableModel model;
+    private JAmazon ui;
+
+    private int frame;
+    private int backlog;
+
+    // The pages of Details which haven't been published
+    private List pending = new ArrayList();
+    // The number of rows which are pending or being added to the model
+    private int rows;
+    private String message;
+
+    private int generation;
+    // The next batch replaces the contents of the model
+    private boolean replace;
+    private boolean scheduled;
+
+    private long lastPublish;
+    private Timer timer;
+
+    private Runnable publisher = new Runnable() {
+	    public void run() {
+		long wait = lastPublish + frame - System.currentTimeMillis();
+		if (wait > 0) {
+		    // Too soon after the last batch
+		    timer.setInitialDelay((int)wait);
+		    timer.restart();
+		} else {
+		    publish();
+		}
+	    }
+	};
+
+    public UpdateCoalescer(DetailsTableModel model, JAmazon ui) {
+	this.model = model;
+	this.ui = ui;
+	frame = Integer.getInteger("jamazon.update.frame", DEFAULT_FRAME).intValue();
+	backlog = Integer.getInteger("jamazon.update.backlog", DEFAULT_BACKLOG).intValue();
+
+	timer = new Timer(frame, new ActionListener() {
+		public void actionPerformed(ActionEvent evt) {
+		    publish();
+		}
+	    });
+	timer.setRepeats(false);
+    }
+
+    /**
+     * Starts a new search. The results of the search will replace the
+     * contents of the model. The fetching threads of earlier searches
+     * which are waiting in <code>add</code> are released.
+     *
+     * @return the generation of the new search
+     */
+    public synchronized int reset() {
+	generation++;
+	pending.clear();
+	rows = 0;
+	message = null;
+	replace = true;
+	notifyAll();
+	return generation;
+    }
+
+    /**
+     * Returns true if the generation is the current search.
+     */
+    public synchronized boolean isCurrent(int generation) {
+	return this.generation == generation;
+    }
+
+    /**
+     * Adds a page of results. Called on the fetching thread, which is
+     * blocked if too many rows are waiting to be added to the model.
+     *
+     * @return false if there has been a new search and the fetching
+     *         thread should stop
+     */
+    public synchronized boolean add(int generation, Details[] details)
+	throws InterruptedException {
+
+	if (rows > backlog) {
+	    Metrics.increment("updates.blocked");
+	}
+	while (this.generation == generation && rows > backlog) {
+	    wait();
+	}
+	if (this.generation != generation) {
+	    return false;
+	}
+	if (details != null && details.length > 0) {
+	    pending.add(details);
+	    rows += details.length;
+	    schedule();
+	}
+	return true;
+    }
+
+    /**
+     * Sets the message for the status bar which is shown when the
+     * pending results have been added to the model.
+     */
+    public synchronized void finish(int generation, String message) {
+	if (this.generation == generation) {
+	    this.message = message;
+	    schedule();
+	}
+    }
+
+    private void schedule() {
+	if (!scheduled) {
+	    scheduled = true;
+	    SwingUtilities.invokeLater(publisher);
+	}
+    }
+
+    /**
+     * Adds the pending results to the model. Called on the event
+     * dispatch thread.
+     */
+    private void publish() {
+	Details[] batch;
+	boolean replaceModel;
+	String status;
+	synchronized (this) {
+	    scheduled = false;
+	    batch = new Details[rows];
+	    int count = 0;
+	    for (int i = 0; i < pending.size(); i++) {
+		Details[] page = (Details[])pending.get(i);
+		System.arraycopy(page, 0, batch, count, page.length);
+		count += page.length;
+	    }
+	    pending.clear();
+	    // A search which ends without any results still replaces the
+	    // results of the previous one
+	    replaceModel = replace && (batch.length > 0 || message != null);
+	    if (replaceModel) {
+		replace = false;
+	    }
+	    status = message;
+	    message = null;
+	}
+
+	if (replaceModel) {
+	    model.setDetails(batch);
+	} else if (batch.length > 0) {
+	    model.addDetails(batch);
+	}
+	if (batch.length > 0) {
+	    Metrics.increment("updates.batches");
+	    Metrics.max("updates.maxBatch", batch.length);
+	}
+	lastPublish = System.currentTimeMillis();
+
+	if (status != null) {
+	    ui.setStatusMessage(status);
+	} else if (batch.length > 0) {
+	    ui.setStatusMessage(model.getRowCount() + " results retrieved");
+	}
+
+	synchronized (this) {
+	    // The rows which arrived while the model was updated are
+	    // still pending
+	    rows -= batch.length;
+	    notifyAll();
+	}
+    }
+}